@@ -2,11 +2,12 @@
 
 package kilim;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import kilim.concurrent.MPSCQueue;
 import kilim.timerservice.Timer;
 
 import kilim.timerservice.TimerService;
@@ -19,7 +20,7 @@ import kilim.timerservice.TimerService.WatchdogTask;
     __Caveat Emptor__
     this is a from-scratch reimplementation of hedvig's ATP based on external linkage:
         Scheduler usage
-        backed by ThreadPoolExecutor
+        backed by ThreadPoolExecutor (since replaced by a single thread draining an MPSCQueue)
     with the non-hedvig additions (nilang, nqzero) replayed on it
     it appears to be a drop-in-replacement for known usages:
         ant clean testjit test
@@ -32,6 +33,17 @@ public class AffineScheduler extends Scheduler implements ThreadFactory {
     protected AtomicInteger index = new AtomicInteger(-1);
     protected AtomicInteger count = new AtomicInteger(0);
     protected TimerService timerService;
+    protected volatile Placement placement = roundRobin;
+    protected volatile Idle idle = defaultIdle;
+    /** the number of tasks taken from each priority class per round, ie a single fifo class by default */
+    protected int [] weights;
+    /**
+     * the default capacity of each executor's run queue, used if the queueSize is less than one, and the most
+     * that is preallocated for any queue
+     */
+    static int defaultQueueSize = Integer.getInteger("kilim.AffineScheduler.queueSize",1<<12);
+    /** the maximum number of tasks that an executor takes from its queue at a time */
+    static int batchSize = 64;
     
 
     protected AffineScheduler() {}
@@ -39,19 +51,87 @@ public class AffineScheduler extends Scheduler implements ThreadFactory {
     /**
      * create the scheduler
      * @param numThreads the number of threads to use, or use the default if less than one
-     * @param queueSize the queue size to use, or use the default if less than one
+     * @param queueSize the capacity of each executor's run queue, or use the default if less than one.
+     *        tasks published to a full queue are held in an unbounded overflow list, ie this is a sizing hint.
+     *        the queue is a preallocated ring, so sizes above defaultQueueSize are capped at it
      */
     public AffineScheduler(int numThreads,int queueSize) {
+        this(numThreads,queueSize,(int []) null);
+    }
+
+    /**
+     * create the scheduler with a run queue per priority class on each executor.
+     * each round an executor takes up to weights[p] tasks from class p, highest priority first,
+     * so a busy class can delay but never starve a lower one, ie class p gets at least
+     * weights[p]/sum(weights) of the runs while it has work
+     * @param numThreads the number of threads to use, or use the default if less than one
+     * @param queueSize the capacity of each run queue, or use the default if less than one, capped as above
+     * @param weights the weight of each class, indexed by Task priority, or null for a single fifo class.
+     *        tasks with a priority past the end use the last class
+     * @see Task#setPriority(int)
+     */
+    public AffineScheduler(int numThreads,int queueSize,int [] weights) {
         if (numThreads <= 0)
             numThreads = defaultNumberThreads;
-        if (queueSize <= 0)
-            queueSize = Integer.MAX_VALUE;
+        if (queueSize <= 0 || queueSize > defaultQueueSize)
+            queueSize = defaultQueueSize;
+        if (weights==null || weights.length==0)
+            weights = new int[] { batchSize };
+        for (int weight : weights)
+            if (weight <= 0)
+                throw new IllegalArgumentException("weights must be positive");
+        this.weights = weights.clone();
         exes = new Executor[numThreads];
         for (int ii=0; ii < numThreads; ii++)
-            exes[ii] = new Executor(new LinkedBlockingQueue(queueSize));
+            exes[ii] = new Executor(ii,queueSize);
         timerService = new TimerService(exes[0]);
+        for (Executor exe : exes)
+            exe.thread.start();
     }
 
+    /**
+     * create the scheduler
+     * @param numThreads the number of threads to use, or use the default if less than one
+     * @param queueSize the queue size to use, or use the default if less than one
+     * @param placement the policy used to pick an executor for tasks that aren't pinned
+     */
+    public AffineScheduler(int numThreads,int queueSize,Placement placement) {
+        this(numThreads,queueSize);
+        this.placement = placement;
+    }
+
+    /** set the policy used to pick an executor for tasks that aren't pinned */
+    public void setPlacement(Placement placement) {
+        this.placement = placement;
+    }
+
+    /** set the strategy used by an executor to wait for work once its queue is empty */
+    public void setIdle(Idle idle) {
+        this.idle = idle;
+    }
+
+    /**
+     * the idle strategy, ie how an executor with an empty queue waits for work:
+     * busy-spin for spins polls, then Thread.yield for yields polls, and then park until a task is published.
+     * spinning trades cpu for latency, eg for PingPong-style message passing between executors
+     */
+    public static class Idle {
+        final int spins, yields;
+        /**
+         * @param spins the number of empty polls to busy-spin for
+         * @param yields the number of empty polls to yield for after spinning
+         */
+        public Idle(int spins,int yields) {
+            this.spins = spins;
+            this.yields = yields;
+        }
+    }
+
+    /** the default idle strategy, configurable with kilim.AffineScheduler.spins and kilim.AffineScheduler.yields */
+    public static final Idle defaultIdle = new Idle(
+            Integer.getInteger("kilim.AffineScheduler.spins",100),
+            Integer.getInteger("kilim.AffineScheduler.yields",10));
+
     public void schedule(int index,Task t) {
         publish(index,t);
     }
@@ -64,11 +144,14 @@ public class AffineScheduler extends Scheduler implements ThreadFactory {
     // ie, if an expensive task occurs every numThreads,
     // then the same TPE would get the expensive task each time
     //
-    // fixme:context-switch
-    // if the threads are not saturated, this round robbin approach still triggers each thread
-    // seems more efficient to saturate 1 thread before triggering the others
-    // ie, to prevent context switching
+    // the round robin default still triggers each thread even if the threads are not saturated
+    // see SaturateFirst and leastLoaded for placements that avoid the resulting context switches
     protected int next() {
+        return placement.select(this);
+    }
+
+    /** the next executor in round robin order */
+    protected int rotate() {
         int value = 0, newValue = 0;
         do {
             value = index.get();
@@ -76,6 +159,66 @@ public class AffineScheduler extends Scheduler implements ThreadFactory {
         } while (!index.compareAndSet(value,newValue));
         return newValue;
     }
+
+    /**
+     * the index of the executor running the calling thread, or -1 if the caller isn't a task on this scheduler
+     */
+    protected int current() {
+        Task task = getCurrentTask();
+        return task != null && task.scheduler==this ? task.getTid() : -1;
+    }
+
+    /** a policy that selects the executor to run a task that is not pinned */
+    public interface Placement {
+        /** return the index of the executor to use */
+        int select(AffineScheduler sched);
+    }
+
+    /** the default placement, hand each task to the next executor in turn */
+    public static final Placement roundRobin = new Placement() {
+        public int select(AffineScheduler sched) { return sched.rotate(); }
+    };
+
+    /**
+     * keep publishing to the same executor (the caller's executor if it's a task on this scheduler)
+     * until its depth exceeds the threshold, and only then spill over to the next executor,
+     * so that at low load most threads stay parked instead of being woken for every task
+     */
+    public static class SaturateFirst implements Placement {
+        final int threshold;
+        /** @param threshold the number of pending tasks at which an executor is considered full */
+        public SaturateFirst(int threshold) { this.threshold = threshold; }
+        public int select(AffineScheduler sched) {
+            Executor [] exes = sched.exes;
+            int start = sched.current();
+            if (start < 0)
+                start = Math.max(sched.index.get(),0);
+            for (int ii=0; ii < exes.length; ii++) {
+                int target = (start+ii) % exes.length;
+                if (exes[target].pending.get() < threshold) {
+                    if (ii > 0) sched.index.set(target);
+                    return target;
+                }
+            }
+            return sched.rotate();
+        }
+    }
+
+    /** select the executor with the fewest pending tasks, preferring the most recently selected on ties */
+    public static final Placement leastLoaded = new Placement() {
+        public int select(AffineScheduler sched) {
+            Executor [] exes = sched.exes;
+            int start = Math.max(sched.index.get(),0), best = start, min = Integer.MAX_VALUE;
+            for (int ii=0; ii < exes.length; ii++) {
+                int target = (start+ii) % exes.length;
+                int pending = exes[target].pending.get();
+                if (pending < min) { min = pending; best = target; }
+                if (pending==0) break;
+            }
+            if (best != start) sched.index.set(best);
+            return best;
+        }
+    };
     
     void publish(int index,Task task) {
         if (index < 0)
@@ -85,6 +228,46 @@ public class AffineScheduler extends Scheduler implements ThreadFactory {
         exes[index].publish(task);
     }
 
+    /**
+     * group the tasks by executor, so that each executor gets a single claim on its queue and a single signal.
+     * with the round robin placement the unpinned tasks are dealt out from a single rotation. other placements
+     * select per task, and each task is counted as pending as soon as it's assigned so that the placement sees
+     * the earlier picks from the same batch
+     */
+    public void scheduleAll(Task [] tasks,int num) {
+        if (num==0) return;
+        Scratch scratch = scratch(num);
+        int [] targets = scratch.ints;
+        int start = placement==roundRobin ? rotate() : -1, dealt = 0;
+        for (int ii=0; ii < num; ii++) {
+            Task task = tasks[ii];
+            int target = task.preferredResumeThread;
+            if (target < 0)
+                target = start < 0 ? next() : (start + dealt++) % exes.length;
+            if (start < 0)
+                exes[target].pending.incrementAndGet();
+            task.setTid(target);
+            targets[ii] = target;
+        }
+        if (dealt > 1)
+            index.set((start + dealt - 1) % exes.length);
+        count.addAndGet(num);
+        Task [] group = scratch.tasks;
+        for (int jj=0; jj < exes.length; jj++) {
+            int k = 0;
+            for (int ii=0; ii < num; ii++)
+                if (targets[ii]==jj)
+                    group[k++] = tasks[ii];
+            if (k > 0) {
+                if (start < 0)
+                    exes[jj].offerAll(group,k);
+                else
+                    exes[jj].publishAll(group,k);
+                Arrays.fill(group,0,k,null);
+            }
+        }
+    }
+
     public void scheduleTimer(Timer t) {
         timerService.submit(t);
     }
@@ -92,38 +275,53 @@ public class AffineScheduler extends Scheduler implements ThreadFactory {
     public void shutdown() {
         super.shutdown();
         for (int ii=0; ii < exes.length; ii++)
-            exes[ii].shutdown();
+            exes[ii].signal();
         timerService.shutdown();
     }
 
     public int numThreads() { return exes.length; }
 
+    public synchronized SchedulerMetrics enableMetrics() {
+        if (metrics==null)
+            metrics = new SchedulerMetrics(this,exes.length);
+        return metrics;
+    }
+
+    public int queueDepth(int worker) {
+        return exes[worker].pending.get();
+    }
+
 
     /*
         
      wait till there are no pending timers
      no running tasks
      no tasks waiting to be run
+
+     rechecks each time the count drops to zero, and every delay milliseconds in case a timer is cancelled
+     from outside the scheduler
         
      */
     public boolean waitIdle(int delay) {
         while (!Thread.interrupted()) {
+            int gen = quiescence.generation();
             if (resolved(timerService))
                 return true;
-            try { Thread.sleep(delay); } catch (InterruptedException ex) { break; }
+            if (! quiescence.await(gen,delay)) break;
         }
         return false;
     }
 
     protected boolean resolved(TimerService ts) {
         if (count.get() > 0) return false;
-        return ts.isEmptyLazy(exes[0]);
+        // checking the timers can fire them, so recheck the count
+        return ts.isEmpty() && count.get()==0;
     }
 
     
     public boolean isEmptyish() {
         for (Executor exe : exes)
-            if (!exe.que.isEmpty()) return false;
+            if (!exe.isIdle()) return false;
         return true;
     }
 
@@ -131,24 +329,173 @@ public class AffineScheduler extends Scheduler implements ThreadFactory {
         return TimerService.factory.newThread(r);
     }
 
-    protected class Executor extends ThreadPoolExecutor implements WatchdogContext {
-        protected LinkedBlockingQueue<Task> que;
+    /**
+     * a bounded MPSCQueue with an unbounded overflow for when it is full. once a task has spilled, new tasks
+     * go to the overflow too until it drains, so that tasks that keep rescheduling into the ring can't starve
+     * the spilled ones
+     */
+    static class RunQueue {
+        final MPSCQueue<Runnable> que;
+        final ConcurrentLinkedQueue<Runnable> overflow = new ConcurrentLinkedQueue<Runnable>();
+
+        RunQueue(int queueSize) { que = new MPSCQueue<Runnable>(queueSize); }
+
+        void offer(Runnable runnable) {
+            if (! overflow.isEmpty() || ! que.offer(runnable))
+                overflow.offer(runnable);
+        }
+
+        void offerAll(Runnable [] runnables,int num) {
+            int done = overflow.isEmpty() ? que.offerAll(runnables,0,num) : 0;
+            for (int ii=done; ii < num; ii++)
+                overflow.offer(runnables[ii]);
+        }
+
+        /** fill the batch from index num up to limit, returning the new number of entries */
+        int poll(Runnable [] batch,int num,int limit) {
+            Runnable runnable;
+            while (num < limit && (runnable = que.poll()) != null)
+                batch[num++] = runnable;
+            while (num < limit && (runnable = overflow.poll()) != null)
+                batch[num++] = runnable;
+            return num;
+        }
+
+        /** are both queues empty, including tasks that have been claimed but not yet written */
+        boolean isEmpty() {
+            return que.size()==0 && overflow.isEmpty();
+        }
+    }
+
+    /**
+     * a single thread that runs the tasks published to it, in batches drained from a run queue per priority class,
+     * waiting for work according to the idle strategy
+     */
+    protected class Executor implements Runnable, WatchdogContext {
+        protected final RunQueue [] queues;
         protected AtomicInteger pending = new AtomicInteger();
+        protected final int index;
+        protected final Thread thread;
+        protected volatile boolean parked;
+        private final Runnable [] batch;
         
         protected void publish(Task task) {
             pending.incrementAndGet();
-            submit(task);
+            offer(task);
+        }
+        
+        protected void publishAll(Task [] tasks,int num) {
+            pending.addAndGet(num);
+            offerAll(tasks,num);
+        }
+
+        /** queue tasks that have already been counted as pending, and signal once */
+        void offerAll(Task [] tasks,int num) {
+            if (queues.length==1)
+                queues[0].offerAll(tasks,num);
+            else
+                for (int ii=0; ii < num; ii++)
+                    queue(tasks[ii]).offer(tasks[ii]);
+            signal();
         }
         
-        public Executor(LinkedBlockingQueue que) {
-            super(1,1,Integer.MAX_VALUE,TimeUnit.DAYS,que,AffineScheduler.this);
-            this.que = que;
+        public Executor(int index,int queueSize) {
+            this.index = index;
+            queues = new RunQueue[weights.length];
+            int total = 0;
+            for (int ii=0; ii < queues.length; ii++) {
+                queues[ii] = new RunQueue(queueSize);
+                total += weights[ii];
+            }
+            batch = new Runnable[total];
+            thread = newThread(this);
+        }
+
+        /** the queue for the priority class of the runnable, watchdogs use the highest */
+        RunQueue queue(Runnable runnable) {
+            if (queues.length==1 || ! (runnable instanceof Task))
+                return queues[0];
+            return queues[Math.min(((Task) runnable).priority,queues.length-1)];
+        }
+
+        // the offer is a volatile write that is ordered before the read of parked,
+        // and park() sets parked before checking the queues, so one side always sees the other
+        void offer(Runnable runnable) {
+            queue(runnable).offer(runnable);
+            signal();
+        }
+
+        void signal() {
+            if (parked)
+                LockSupport.unpark(thread);
         }
 
-        protected void afterExecute(Runnable r,Throwable t) {
+        /** are all the queues empty */
+        boolean isIdle() {
+            for (RunQueue queue : queues)
+                if (! queue.isEmpty()) return false;
+            return true;
+        }
+
+        /**
+         * take a round of tasks from the queues, up to the weight of each class, and run them,
+         * returning the number run
+         */
+        int drain() {
+            int num = 0;
+            for (int ii=0; ii < queues.length; ii++)
+                num = queues[ii].poll(batch,num,num+weights[ii]);
+            for (int ii=0; ii < num; ii++) {
+                Runnable runnable = batch[ii];
+                batch[ii] = null;
+                execute(runnable);
+            }
+            return num;
+        }
+
+        void execute(Runnable runnable) {
+            SchedulerMetrics stats = metrics;
+            long start = stats==null ? 0 : System.nanoTime();
+            try {
+                runnable.run();
+            }
+            catch (Throwable ex) { log(this,ex); }
+            if (stats != null)
+                stats.record(index,runnable,start,System.nanoTime());
             pending.decrementAndGet();
             timerService.trigger(this);
-            count.decrementAndGet();
+            if (count.decrementAndGet()==0)
+                quiescence.signal();
+        }
+
+        public void run() {
+            int empty = 0;
+            while (true) {
+                if (drain() > 0) {
+                    empty = 0;
+                    continue;
+                }
+                if (shutdown.get() && isIdle())
+                    return;
+                Idle strategy = idle;
+                if (empty < strategy.spins)
+                    empty++;
+                else if (empty < strategy.spins + strategy.yields) {
+                    empty++;
+                    Thread.yield();
+                }
+                else {
+                    empty = 0;
+                    park();
+                }
+            }
+        }
+
+        void park() {
+            parked = true;
+            if (isIdle() && !shutdown.get())
+                LockSupport.park(this);
+            parked = false;
         }
 
         public boolean isEmpty() {
@@ -161,14 +508,9 @@ public class AffineScheduler extends Scheduler implements ThreadFactory {
 
         public void publish(WatchdogTask dog) {
             count.incrementAndGet();
-            // warning - adding directly to the queue is "strongly discouraged"
-            // original motivation for this technique was to bypass the TPE wrapping of the task
-            // not sure if this is still a consideration
-            // fixme:verify - is it possible that executor has not yet started ???
-            getQueue().add(dog);
+            pending.incrementAndGet();
+            offer(dog);
         }
     }
 
 }
-
-
@@ -0,0 +1,14 @@
+package kilim;
+
+/**
+ * thrown inside a cancelled task when it next resumes from a pause, see Task.cancel.
+ * the task ends with it as its exit result, but it isn't logged as a failure
+ */
+public class CancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CancelledException(String msg) {
+        // a task unwinds with it as control flow, so skip the stack trace
+        super(msg,null,false,false);
+    }
+}
@@ -17,7 +17,7 @@ import kilim.concurrent.VolatileReferenceCell;
  * optimized for this size)
  */
 
-public class Cell<T> implements PauseReason, EventPublisher {
+public class Cell<T> implements Releasable, Selectable {
     Queue<EventSubscriber>                 srcs             = new ConcurrentLinkedQueue<EventSubscriber>();
     public static final int                SPACE_AVAILABLE  = 1;
     public static final int                MSG_AVAILABLE    = 2;
@@ -168,6 +168,11 @@ public class Cell<T> implements PauseReason, EventPublisher {
         sink.compareAndSet(msgSub, null);
     }
 
+    public void release(Task t) {
+        removeMsgAvailableListener(t);
+        removeSpaceAvailableListener(t);
+    }
+
     public boolean putnb(T msg) {
         return put(msg, null);
     }
@@ -41,6 +41,7 @@ public interface Constants extends Opcodes {
 
     String D_FIBER          = "Lkilim/Fiber;";
     String D_STATE          = "Lkilim/State;";
+    String D_FLAT_STATE     = "Lkilim/FlatState;";
     String D_TASK           = "Lkilim/Task;";
     String D_PAUSABLE       = "Lkilim/Pausable;";
     String D_FIBER_LAST_ARG   = D_FIBER + ')'; // Last argument in a method descriptor
@@ -48,6 +49,7 @@ public interface Constants extends Opcodes {
     String THROWABLE_CLASS  = "java/lang/Throwable";
     String FIBER_CLASS      = "kilim/Fiber";
     String STATE_CLASS      = "kilim/State";
+    String FLAT_STATE_CLASS = "kilim/FlatState";
     String TASK_CLASS       = "kilim/Task";
     String PAUSABLE_CLASS   = "kilim/Pausable";
     String NOT_PAUSABLE_CLASS   = "kilim/NotPausable";
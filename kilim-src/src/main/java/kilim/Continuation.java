@@ -32,6 +32,8 @@ public abstract class Continuation implements Fiber.Worker {
     static final FakeTask fakeTask = new FakeTask();
     public static class FakeTask extends Task {
         protected FakeTask() { super(false); }
+        /** a continuation returns from run when it yields, so it must never be preempted */
+        public boolean overBudget() { return false; }
         Fiber.MethodRef getRunnerInfo() {
             return runnerInfo;
         }
@@ -94,6 +96,31 @@ public abstract class Continuation implements Fiber.Worker {
         fiber.reset();
     }
 
+    /**
+     * write a checkpoint, ie the continuation and the saved frames of its fiber, from which restore()
+     * creates a continuation that resumes from the same yield. the subclass must be Serializable, as must
+     * everything the frames reference. cannot be called inside execute()
+     */
+    public void checkpoint(java.io.ObjectOutput out) throws java.io.IOException {
+        assert !active : "invalid call to checkpoint() during run()";
+        out.writeObject(this);
+        out.writeObject(fiber);
+    }
+
+    /**
+     * read a continuation written by checkpoint, using the same woven classes.
+     * the next call to run() continues from the yield that preceded the checkpoint
+     */
+    @SuppressWarnings("unchecked")
+    public static <CC extends Continuation> CC restore(java.io.ObjectInput in)
+            throws java.io.IOException, ClassNotFoundException {
+        CC cont = (CC) in.readObject();
+        Continuation base = cont;
+        base.fiber = (Fiber) in.readObject();
+        base.fiber.task = fakeTask;
+        return cont;
+    }
+
 
     // performance notes:
     //   i3-2105: 5x Xorshift 5000000 20 --> median: 30.27
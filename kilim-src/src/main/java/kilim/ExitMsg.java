@@ -24,7 +24,7 @@ public class ExitMsg<TT> {
     
     @Override
     public int hashCode() {
-        return task.id;
+        return task.hashCode();
     }
     @Override
     public boolean equals(Object obj) {
@@ -11,9 +11,19 @@ import java.lang.reflect.Field;
 /**
  * This class serves as a context to manage and store the continuation stack.
  * The actual capture of the closure is done in the Weaver-transformed code.
+ * <p>
+ * Resuming re-enters every woven frame between the task's execute() and the
+ * pause point: the jvm offers no way to return into a caller frame that isn't
+ * on the thread's stack, so a frame can only be skipped by not being needed.
+ * Re-entry is cheap though (a switch on pc, dummy locals and the call), and the
+ * unwinding is lazy: a frame's State stays in stateStack until that frame
+ * returns normally, so if the leaf pauses again (eg the next Mailbox.get in a
+ * loop) up() reports PAUSING__HAS_STATE for the callers and only the frames
+ * that actually ran since the resume save anything.
  */
 
-public final class Fiber {
+public final class Fiber implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
 
 //    public boolean debug = false;
     /**
@@ -24,7 +34,7 @@ public final class Fiber {
      * having to manipulate stateStack in the generated code, and to isolate
      * all stack manipulations to up() and down().
      */
-    public State               curState;
+    public transient State     curState;
 
     /**
      * The "program counter", kept equal to stateStack[iStack].pc and is used to
@@ -48,19 +58,31 @@ public final class Fiber {
      */
     private int                iStack                  = -1;
 
+    /*
+     * The last state restored at each depth, kept for reuse by code woven with
+     * KilimContext.reuseStates. Null until the first call to reuse()
+     */
+    private transient State[]  spare;
+
+    /*
+     * The state owned by each depth, for code woven with KilimContext.flatStates.
+     * Null until the first call to flat()
+     */
+    private transient FlatState[] flats;
+
     boolean                    isPausing;
     
     boolean                    isDone;
 
     /*
-     * The task to which this Fiber belongs
+     * The task to which this Fiber belongs, set by the owner of a restored fiber
      */
-    public Task                      task;
+    public transient Task            task;
 
     /*
      * Special marker state used by pause
      */
-    private static final State PAUSE_STATE             = new State();
+    private static final State PAUSE_STATE             = new PauseState();
 
     /*
      * Status indicators returned by down()
@@ -89,6 +111,12 @@ public final class Fiber {
         PAUSE_STATE.pc = 1;
     }
 
+    /** the marker state, which is compared by identity so a restored one must resolve to the singleton */
+    private static final class PauseState extends State {
+        private static final long serialVersionUID = 1L;
+        private Object readResolve() { return PAUSE_STATE; }
+    }
+
     public static class MethodRef {
         String classname, methodname;
         public MethodRef(String cn,String mn) { classname = cn; methodname = mn; }
@@ -118,6 +146,8 @@ public final class Fiber {
         iStack = -1;
         isPausing = false;
         isDone = false;
+        spare = null;
+        flats = null;
     }
     
     /** yield cooperatively to the next task waiting to use the thread */
@@ -176,6 +206,9 @@ public final class Fiber {
                 return NOT_PAUSING__NO_STATE;
             } else {
                 stack[d] = null; // clean up
+                State[] sp = spare;
+                if (sp != null && cs != PAUSE_STATE)
+                    sp[d] = cs;
                 pc = cs.pc;
 //                if (debug) System.out.println("\nup(not pausing)" + this);;
 //                if (debug) ds();
@@ -302,9 +335,51 @@ public final class Fiber {
         State[] newStack = new State[newsize];
         System.arraycopy(stateStack, 0, newStack, 0, stateStack.length);
         stateStack = newStack;
+        if (spare != null) {
+            State[] newSpare = new State[newsize];
+            System.arraycopy(spare, 0, newSpare, 0, spare.length);
+            spare = newSpare;
+        }
         return newStack;
     }
 
+    /**
+     * Called by code woven with KilimContext.reuseStates before saving state,
+     * in place of allocating a new State. Returns the last state restored at
+     * the current depth, which the caller reuses if it is of the right class
+     * (all of its fields are overwritten by the save), or null.
+     * The spare states hold on to their values until they are reused, ie at
+     * most one stale state per depth.
+     */
+    public State reuse() {
+        State[] sp = spare;
+        if (sp == null) {
+            spare = new State[stateStack.length];
+            return null;
+        }
+        return sp[iStack];
+    }
+
+    /**
+     * Called by code woven with KilimContext.flatStates in place of allocating
+     * a State, returning the state owned by the current depth with room for
+     * the frame's values.
+     */
+    public FlatState flat(int numPrims, int numRefs) {
+        FlatState[] fs = flats;
+        if (fs == null || fs.length < stateStack.length) {
+            fs = new FlatState[stateStack.length];
+            if (flats != null)
+                System.arraycopy(flats, 0, fs, 0, flats.length);
+            flats = fs;
+        }
+        FlatState s = fs[iStack];
+        if (s == null)
+            fs[iStack] = s = new FlatState();
+        s.ensure(numPrims, numRefs);
+        return s;
+    }
+
     /**
      * Called by the generated code before pausing and unwinding its stack
      * frame.
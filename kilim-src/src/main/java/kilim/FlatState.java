@@ -0,0 +1,27 @@
+package kilim;
+
+/**
+ * the State used by code woven with KilimContext.flatStates. instead of a generated class with a field
+ * per saved value, the values are spilled into two arrays, primitives as the bits of a long and references
+ * as Objects, in the order of the fields that would otherwise have been generated.
+ *
+ * the fiber owns a FlatState per depth (see Fiber.flat) and hands the same one to every frame that pauses
+ * at that depth, so pausing allocates nothing once the arrays have grown to fit.
+ * the arrays hold on to their values until overwritten, ie at most one stale frame per depth
+ */
+public final class FlatState extends State {
+    private static final long serialVersionUID = 1L;
+    static final long [] noPrims = new long[0];
+    static final Object [] noRefs = new Object[0];
+
+    public long [] prims = noPrims;
+    public Object [] refs = noRefs;
+
+    /** grow the arrays to hold at least the given number of values */
+    void ensure(int numPrims,int numRefs) {
+        if (prims.length < numPrims)
+            prims = new long[Math.max(numPrims,2*prims.length)];
+        if (refs.length < numRefs)
+            refs = new Object[Math.max(numRefs,2*refs.length)];
+    }
+}
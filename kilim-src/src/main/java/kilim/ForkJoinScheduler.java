@@ -1,9 +1,13 @@
 package kilim;
 
 import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import kilim.timerservice.Timer;
 import kilim.timerservice.TimerService;
 
@@ -21,10 +25,30 @@ public class ForkJoinScheduler extends Scheduler
     ForkJoinPool pool;
     private TimerService timerService;
     private AtomicInteger count = new AtomicInteger(0);
+    private final boolean pinnable;
+    /** the pool's workers by index, populated only if pinnable */
+    private ConcurrentHashMap<Integer,Worker> workers = new ConcurrentHashMap<Integer,Worker>();
+    private ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<Integer>();
+    private AtomicInteger nextIndex = new AtomicInteger(0);
 
     public ForkJoinScheduler(int numThreads) {
+        this(numThreads,false);
+    }
+
+    /**
+     * create the scheduler
+     * @param numThreads the parallelism of the pool, or use the default if negative
+     * @param pinnable if true, tasks can be pinned, eg by kilim.ReentrantLock, without moving to the
+     *        default pinnable scheduler. each worker has a dense index and a private inbox, and a worker that
+     *        has a task pinned to it stays with that task, blocking in a managedBlock so that the pool
+     *        can compensate, until the pins are released
+     */
+    public ForkJoinScheduler(int numThreads,boolean pinnable) {
         numThreads = numThreads >= 0 ? numThreads : Scheduler.defaultNumberThreads;
-        pool = new ForkJoinPool(numThreads);
+        this.pinnable = pinnable;
+        pool = pinnable
+                ? new ForkJoinPool(numThreads,new Factory(),null,false)
+                : new ForkJoinPool(numThreads);
         timerService = new TimerService(this);
     }
 
@@ -36,11 +60,18 @@ public class ForkJoinScheduler extends Scheduler
         return count.get()==0;
     }
 
-    public boolean isPinnable() { return false; }
+    public boolean isPinnable() { return pinnable; }
     
     public void schedule(int index,Task task) {
-        assert index < 0 : "attempt to pin task to FJS";
-        publish(task);
+        assert index < 0 | pinnable : "attempt to pin task to FJS";
+        Worker worker = index < 0 ? null : workers.get(index);
+        if (worker != null && task.preferredResumeThread==index) {
+            count.incrementAndGet();
+            worker.inbox.offer(task);
+            LockSupport.unpark(worker);
+        }
+        else
+            publish(task);
      }
     public void publish(Runnable task) {
         ForkJoinPool current = ForkJoinTask.getPool();
@@ -48,11 +79,28 @@ public class ForkJoinScheduler extends Scheduler
         count.incrementAndGet();
         if (current==pool)
             fajita.fork();
-        else
+        else {
             pool.submit(fajita);
+            if (pinnable)
+                wakeHolder();
+        }
+    }
+
+    /**
+     * workers blocked in hold still count towards the pool's size, so the pool may not add a worker for
+     * a new submission. wake a parked holder (if any) to run it instead
+     */
+    private void wakeHolder() {
+        for (Worker worker : workers.values())
+            if (worker.parked) {
+                LockSupport.unpark(worker);
+                return;
+            }
     }
 
     public boolean isEmptyish() {
+        for (Worker worker : workers.values())
+            if (! worker.inbox.isEmpty()) return false;
         return ! pool.hasQueuedSubmissions();
     }
 
@@ -60,6 +108,16 @@ public class ForkJoinScheduler extends Scheduler
         return pool.getParallelism();
     }
 
+    /**
+     * the pool may add threads beyond its parallelism, eg to compensate for blocking, so the stripes are
+     * indexed by pool index modulo twice the parallelism and the metrics are approximate if that wraps
+     */
+    public synchronized SchedulerMetrics enableMetrics() {
+        if (metrics==null)
+            metrics = new SchedulerMetrics(this,2*pool.getParallelism());
+        return metrics;
+    }
+
     public void scheduleTimer(Timer t) {
         timerService.submit(t);
     }
@@ -68,15 +126,24 @@ public class ForkJoinScheduler extends Scheduler
         while (!Thread.interrupted())
             if (waitIdle(100)) return;
     }
+    /** wait up to delay milliseconds for the scheduler to become idle, returning true if it did */
     public boolean waitIdle(int delay) {
-        // avoid the java 8 feature to simplify the java 7 build
-        // if (! pool.awaitQuiescence(delay,java.util.concurrent.TimeUnit.MILLISECONDS)) return false;
-        if (! isEmpty())
-            return false;
-        if (timerService.isEmptyLazy(this))
+        int gen = quiescence.generation();
+        if (resolved())
             return true;
-        try { Thread.sleep(delay); } catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
-        return false;
+        quiescence.await(gen,delay);
+        return resolved();
+    }
+
+    private boolean resolved() {
+        // checking the timers can fire them, so recheck the count
+        return isEmpty() && timerService.isEmpty() && isEmpty();
+    }
+
+    private void finished() {
+        timerService.trigger(this);
+        if (count.decrementAndGet()==0)
+            quiescence.signal();
     }
 
     final class ForkedRunnable<V> extends ForkJoinTask<V> {
@@ -85,16 +152,140 @@ public class ForkJoinScheduler extends Scheduler
         public V getRawResult() { return null; }
         protected void setRawResult(V value) {}
         protected boolean exec() {
-            // generally would Task.setTid here, but they can't be pinned and non-pool threads can participate
-            //   so skip it
+            // generally would Task.setTid here, but unless pinnable they can't be pinned
+            //   and non-pool threads can participate, so skip it
+            Thread thread = Thread.currentThread();
+            if (pinnable && thread instanceof Worker && ((Worker) thread).getPool()==pool) {
+                Worker worker = (Worker) thread;
+                worker.execute(task);
+                // a task run from hold returns to that loop, rather than nesting another
+                if (!worker.holding)
+                    worker.hold(this);
+                return true;
+            }
+            SchedulerMetrics stats = metrics;
+            int index = 0;
+            long start = 0;
+            if (stats != null) {
+                // the tid is only used for the metrics stripe since tasks can't be pinned
+                index = thread instanceof ForkJoinWorkerThread ? ((ForkJoinWorkerThread) thread).getPoolIndex() : 0;
+                if (task instanceof Task)
+                    ((Task) task).setTid(index);
+                start = System.nanoTime();
+            }
             task.run();
-            timerService.trigger(ForkJoinScheduler.this);
-            count.decrementAndGet();
+            if (stats != null)
+                stats.record(index,task,start,System.nanoTime());
+            finished();
+            return true;
+        }
+        /** the next task from the local queue, or one stolen from another worker */
+        ForkJoinTask<?> poll() { return pollTask(); }
+    }
+
+    final class Factory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            return new Worker(pool);
+        }
+    }
+
+    /**
+     * a pool thread with a dense index, used as the tid of the tasks that it runs,
+     * and an inbox for the tasks that are pinned to it
+     */
+    final class Worker extends ForkJoinWorkerThread implements ForkJoinPool.ManagedBlocker {
+        final int index;
+        final ConcurrentLinkedQueue<Task> inbox = new ConcurrentLinkedQueue<Task>();
+        /** the number of tasks pinned to this worker, accessed only by the worker */
+        int pins;
+        /** whether the worker is in hold, accessed only by the worker */
+        boolean holding;
+        volatile boolean parked;
+
+        Worker(ForkJoinPool pool) {
+            super(pool);
+            Integer value = free.poll();
+            index = value==null ? nextIndex.getAndIncrement() : value;
+            workers.put(index,this);
+        }
+
+        protected void onTermination(Throwable exception) {
+            workers.remove(index);
+            free.offer(index);
+            super.onTermination(exception);
+        }
+
+        void execute(Runnable runnable) {
+            Task task = runnable instanceof Task ? (Task) runnable : null;
+            boolean was = false;
+            if (task != null) {
+                task.setTid(index);
+                was = task.preferredResumeThread==index;
+            }
+            SchedulerMetrics stats = metrics;
+            long start = stats==null ? 0 : System.nanoTime();
+            runnable.run();
+            if (stats != null)
+                stats.record(index,runnable,start,System.nanoTime());
+            // the task is pinned to this worker, so only this thread can modify preferredResumeThread
+            if (task != null)
+                pins += (task.preferredResumeThread==index ? 1:0) - (was ? 1:0);
+            finished();
+        }
+
+        /**
+         * while any task is pinned to this worker, run the tasks handed to the inbox and any other work
+         * from the pool, blocking only once there is neither.
+         * the local queue must be drained before blocking, since eg a watchdog forked here could otherwise
+         * be stranded while every worker is holding.
+         * the two sources alternate, so that a pinned task that keeps yielding doesn't starve the rest
+         */
+        void hold(ForkedRunnable fajita) {
+            holding = true;
+            try {
+                boolean local = false;
+                while (pins > 0 && !shutdown.get()) {
+                    Task task = null;
+                    ForkJoinTask<?> other = null;
+                    local = !local;
+                    if (local)
+                        task = (other = fajita.poll())==null ? inbox.poll() : null;
+                    else if ((task = inbox.poll())==null)
+                        other = fajita.poll();
+                    if (task != null)
+                        execute(task);
+                    else if (other != null)
+                        other.quietlyInvoke();
+                    else
+                        try {
+                            ForkJoinPool.managedBlock(this);
+                        }
+                        catch (InterruptedException ex) { interrupt(); return; }
+                }
+            }
+            finally {
+                holding = false;
+            }
+        }
+
+        public boolean isReleasable() {
+            return ! inbox.isEmpty() || shutdown.get() || pool.hasQueuedSubmissions();
+        }
+
+        // parked is set before the final check so that a concurrent publish either sees it or its
+        // submission is visible to the check. any wakeup returns to hold to poll for work
+        public boolean block() {
+            parked = true;
+            if (! isReleasable())
+                LockSupport.park(this);
+            parked = false;
             return true;
         }
     }
     public void shutdown() {
         super.shutdown();
+        for (Worker worker : workers.values())
+            LockSupport.unpark(worker);
         pool.shutdown();
         timerService.shutdown();
     }
@@ -34,6 +34,7 @@ import java.util.NoSuchElementException;
  * 
  * </pre>
  *  @see kilim.examples.Fib, kilim.examples.Tree
+ *  @see IntGenerator, LongGenerator for unboxed values and batching
  */
 
 public class Generator<T> extends Continuation implements Iterator<T>, Iterable<T> {
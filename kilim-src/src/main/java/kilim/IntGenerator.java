@@ -0,0 +1,64 @@
+package kilim;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * a Generator of ints, ie without boxing each value. values are collected into a buffer and the body
+ * only yields once the buffer is full, so a batch of n values costs one rewind and unwind instead of n.
+ * the default batch of 1 yields on every value, like Generator
+ *
+ * <pre>
+ * class Squares extends IntGenerator {
+ *   Squares() { super(64); }
+ *   public void execute() throws Pausable {
+ *       for (int ii=0; ; ii++)
+ *           yield(ii*ii);
+ *   }
+ * }
+ * </pre>
+ * @see Generator
+ */
+public class IntGenerator extends Continuation implements PrimitiveIterator.OfInt {
+    private final int [] buf;
+    private int num, pos;
+    private boolean done;
+
+    public IntGenerator() { this(1); }
+    /** @param batch the number of values that the body produces between yields */
+    public IntGenerator(int batch) {
+        buf = new int[batch];
+    }
+
+    public boolean hasNext() {
+        if (pos < num)
+            return true;
+        pos = num = 0;
+        // the body may also pause without producing anything, eg a direct Fiber.yield
+        while (num==0 & !done)
+            done = run();
+        return num > 0;
+    }
+
+    public int nextInt() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buf[pos++];
+    }
+
+    public void remove() {
+        throw new AssertionError("Not Supported");
+    }
+
+    public void reset() {
+        super.reset();
+        pos = num = 0;
+        done = false;
+    }
+
+    public void yield(int val) throws Pausable {
+        buf[num++] = val;
+        if (num==buf.length)
+            Fiber.yield();
+    }
+}
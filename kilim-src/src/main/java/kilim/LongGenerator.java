@@ -0,0 +1,64 @@
+package kilim;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * a Generator of longs, ie without boxing each value. values are collected into a buffer and the body
+ * only yields once the buffer is full, so a batch of n values costs one rewind and unwind instead of n.
+ * the default batch of 1 yields on every value, like Generator
+ *
+ * <pre>
+ * class Squares extends LongGenerator {
+ *   Squares() { super(64); }
+ *   public void execute() throws Pausable {
+ *       for (long ii=0; ; ii++)
+ *           yield(ii*ii);
+ *   }
+ * }
+ * </pre>
+ * @see Generator
+ */
+public class LongGenerator extends Continuation implements PrimitiveIterator.OfLong {
+    private final long [] buf;
+    private int num, pos;
+    private boolean done;
+
+    public LongGenerator() { this(1); }
+    /** @param batch the number of values that the body produces between yields */
+    public LongGenerator(int batch) {
+        buf = new long[batch];
+    }
+
+    public boolean hasNext() {
+        if (pos < num)
+            return true;
+        pos = num = 0;
+        // the body may also pause without producing anything, eg a direct Fiber.yield
+        while (num==0 & !done)
+            done = run();
+        return num > 0;
+    }
+
+    public long nextLong() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buf[pos++];
+    }
+
+    public void remove() {
+        throw new AssertionError("Not Supported");
+    }
+
+    public void reset() {
+        super.reset();
+        pos = num = 0;
+        done = false;
+    }
+
+    public void yield(long val) throws Pausable {
+        buf[num++] = val;
+        if (num==buf.length)
+            Fiber.yield();
+    }
+}
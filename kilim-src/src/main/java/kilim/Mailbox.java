@@ -6,7 +6,11 @@
 
 package kilim;
 
-import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import kilim.concurrent.ChunkedMPSCQueue;
 
 /**
  * This is a typed buffer that supports multiple producers and a single
@@ -18,16 +22,20 @@ import java.util.LinkedList;
  * fiber pausing. The suffix "nb" on some methods (such as getnb())
  * stands for non-blocking. Both put() and get() have blocking and
  * non-blocking variants in the form of putb(), putnb
+ * 
+ * The mailbox is lock-free: messages are held in a ChunkedMPSCQueue, and the
+ * consumer and the blocked producers are registered with a CAS. A consumer
+ * registers and then polls again, and a producer offers and then checks for
+ * a consumer, so one of them always sees the other.
  */
 
-public class Mailbox<T> implements PauseReason, EventPublisher {
+public class Mailbox<T> implements Releasable, Selectable {
     // TODO. Give mbox a config name and id and make monitorable
-    T[] msgs;
-    private int iprod = 0; // producer index
-    private int icons = 0; // consumer index;
-    private int numMsgs = 0;
+    ChunkedMPSCQueue<T> msgs;
     private int maxMsgs = 300;
-    EventSubscriber sink;
+    volatile EventSubscriber sink;
+    private static final AtomicReferenceFieldUpdater<Mailbox,EventSubscriber> sinkUpdater
+            = AtomicReferenceFieldUpdater.newUpdater(Mailbox.class,EventSubscriber.class,"sink");
     
     // FIX: I don't like this event design. The only good thing is that
     // we don't create new event objects every time we signal a client
@@ -39,7 +47,7 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
     public static final Event messageAvailable = new Event(MSG_AVAILABLE);
     public static final Event timedOut = new Event(TIMED_OUT);
     
-    LinkedList<EventSubscriber> srcs = new LinkedList<EventSubscriber>();
+    Queue<EventSubscriber> srcs = new ConcurrentLinkedQueue<EventSubscriber>();
 
     // DEBUG stuff
     // To do: move into monitorable stat object
@@ -55,12 +63,11 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
         this(initialSize, Integer.MAX_VALUE);
     }
 
-    @SuppressWarnings("unchecked")
     public Mailbox(int initialSize, int maxSize) {
         if (initialSize > maxSize)
             throw new IllegalArgumentException("initialSize: " + initialSize
                     + " cannot exceed maxSize: " + maxSize);
-        msgs = (T[]) new Object[initialSize];
+        msgs = new ChunkedMPSCQueue<T>(initialSize, maxSize);
         maxMsgs = maxSize;
     }
 
@@ -71,28 +78,33 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
      * @return buffered message if there's one, or null 
      */
     public T get(EventSubscriber eo) {
-        T msg;
-        EventSubscriber producer = null;
-        synchronized(this) {
-            int n = numMsgs;
-            if (n > 0) {
-                int ic = icons;
-                msg = msgs[ic]; msgs[ic]=null;
-                icons = (ic + 1) % msgs.length;
-                numMsgs = n - 1;
-                
-                if (srcs.size() > 0) {
-                    producer = srcs.poll();
-                }
-            } else {
-                msg = null;
-                addMsgAvailableListener(eo);
-            }
+        T msg = msgs.poll();
+        if (msg == null && eo != null) {
+            addMsgAvailableListener(eo);
+            // a put that missed the registration must be visible now
+            msg = msgs.poll();
+            if (msg != null)
+                sinkUpdater.compareAndSet(this, eo, null);
         }
-        if (producer != null)  {
+        if (msg != null)
+            wakeProducers(1);
+        return msg;
+    }
+
+    /** signal up to num of the producers waiting for space */
+    private void wakeProducers(int num) {
+        EventSubscriber producer;
+        for (; num > 0 && !srcs.isEmpty() && (producer = srcs.poll()) != null; num--)
             producer.onEvent(this, spaceAvailble);
+    }
+
+    /** signal the consumer, if any, that messages are available */
+    private void wakeConsumer() {
+        if (sink != null) {
+            EventSubscriber subscriber = sinkUpdater.getAndSet(this, null);
+            if (subscriber != null)
+                subscriber.onEvent(this, messageAvailable);
         }
-        return msg;
     }
     
     /**
@@ -103,53 +115,65 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
      * @see #putnb(Object)
      * @see #putb(Object) 
      */
-    @SuppressWarnings("unchecked")
     public boolean put(T msg, EventSubscriber eo) {
-        boolean ret = true; // assume we will be able to enqueue
-        EventSubscriber subscriber;
-        synchronized(this) {
-            if (msg == null) {
-                throw new NullPointerException("Null message supplied to put");
-            }
-            int ip = iprod;
-            int ic = icons;
-            int n = numMsgs;
-            if (n == msgs.length) {
-                assert ic == ip : "numElements == msgs.length && ic != ip";
-                if (n < maxMsgs) {
-                    T[] newmsgs = (T[]) new Object[Math.min(n * 2, maxMsgs)];
-                    System.arraycopy(msgs, ic, newmsgs, 0, n - ic);
-                    if (ic > 0) {
-                        System.arraycopy(msgs, 0, newmsgs, n - ic, ic);
-                    }
-                    msgs = newmsgs;
-                    ip = n;
-                    ic = 0;
-                } else {
-                    ret = false;
-                }
-            }
-            if (ret) {
-                numMsgs = n + 1;
-                msgs[ip] = msg;
-                iprod = (ip + 1) % msgs.length;
-                icons = ic;
-                subscriber = sink;
-                sink = null;
-            } else {
-                subscriber = null;
-                // unable to enqueue
-                if (eo != null) {
-                    srcs.add(eo);
-                }
-            }
+        if (msg == null) {
+            throw new NullPointerException("Null message supplied to put");
         }
-        // notify get's subscriber that something is available
-        if (subscriber != null) {
-            subscriber.onEvent(this, messageAvailable);
+        boolean ret = msgs.offer(msg);
+        if (!ret && eo != null) {
+            srcs.add(eo);
+            // a get that missed the registration must have made space by now
+            ret = msgs.offer(msg);
+            if (ret)
+                srcs.remove(eo);
         }
+        // notify get's subscriber that something is available
+        if (ret)
+            wakeConsumer();
         return ret;
     }
+
+    /**
+     * Non-blocking, nonpausing batch get. Moves as many messages as are buffered, up to len, into buf,
+     * waking the producers waiting for the space that frees
+     * @param eo. If non-null and nothing is buffered, registers this observer as in get(EventSubscriber)
+     * @return the number of messages moved, starting at buf[offset]
+     */
+    public int getAll(T [] buf, int offset, int len, EventSubscriber eo) {
+        int num = msgs.drain(buf, offset, len);
+        if (num == 0 && eo != null) {
+            addMsgAvailableListener(eo);
+            num = msgs.drain(buf, offset, len);
+            if (num > 0)
+                sinkUpdater.compareAndSet(this, eo, null);
+        }
+        if (num > 0)
+            wakeProducers(num);
+        return num;
+    }
+
+    /**
+     * Non-blocking, nonpausing batch put. Claims space for the run of messages at once and signals the
+     * consumer once, rather than per message
+     * @param eo. If non-null and not all the messages fit, registers this observer as in put(T,EventSubscriber)
+     * @return the number of messages put, starting at buf[offset], which may be less than len if the mailbox fills
+     */
+    public int putAll(T [] buf, int offset, int len, EventSubscriber eo) {
+        for (int ii = offset; ii < offset+len; ii++)
+            if (buf[ii] == null)
+                throw new NullPointerException("Null message supplied to putAll");
+        int num = msgs.offerAll(buf, offset, len);
+        if (num < len && eo != null) {
+            srcs.add(eo);
+            int more = msgs.offerAll(buf, offset+num, len-num);
+            if (num+more == len)
+                srcs.remove(eo);
+            num += more;
+        }
+        if (num > 0)
+            wakeConsumer();
+        return num;
+    }
     
     /**
      * Get, don't pause or block.
@@ -201,6 +225,30 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
     }
     
     
+    /**
+     * get at least one message, and up to buf.length, pausing until one is available
+     * @return the number of messages moved into buf
+     * @throws Pausable
+     */
+    public int getAll(T [] buf) throws Pausable {
+        Task t = Task.getCurrentTask();
+        int num = getAll(buf, 0, buf.length, t);
+        while (num == 0) {
+            Task.pause(this);
+            removeMsgAvailableListener(t);
+            num = getAll(buf, 0, buf.length, t);
+        }
+        return num;
+    }
+
+    /**
+     * get up to buf.length messages without pausing
+     * @return the number of messages moved into buf, possibly zero
+     */
+    public int getAllnb(T [] buf) {
+        return getAll(buf, 0, buf.length, null);
+    }
+
     /**
      * Block caller until at least one message is available.
      * @throws Pausable
@@ -223,83 +271,59 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
 	}
 
 	public boolean hasMessage(Task eo) {
-		boolean has_msg;
-		synchronized (this) {
-			int n = numMsgs;
-			if (n > 0) {
-				has_msg = true;
-			} else {
-				has_msg = false;
-				addMsgAvailableListener(eo);
-			}
-		}
-		return has_msg;
+		return hasMessages(1, eo);
 	}
 
 	public boolean hasMessages(int num, Task eo) {
-		boolean has_msg;
-		synchronized (this) {
-			int n = numMsgs;
-			if (n >= num) {
-				has_msg = true;
-			} else {
-				has_msg = false;
-				addMsgAvailableListener(eo);
-			}
+		if (msgs.available(num))
+			return true;
+		addMsgAvailableListener(eo);
+		if (msgs.available(num)) {
+			sinkUpdater.compareAndSet(this, eo, null);
+			return true;
 		}
-		return has_msg;
+		return false;
 	}
 
 
+	/**
+	 * the idx'th buffered message without removing it, or null if there
+	 * isn't one or a producer has claimed its slot but not yet written it.
+	 * exact only on the consumer's thread, a snapshot that may already be
+	 * stale on any other
+	 */
 	public T peek(int idx) {
 		assert idx >= 0 : "negative index";
-		T msg;
-		synchronized (this) {
-			int n = numMsgs;
-			if (idx < n) {
-				int ic = icons;
-				msg = msgs[(ic + idx) % msgs.length];
-
-				assert msg != null : "peeked null message!";
-			} else {
-				msg = null;
-			}
-		}
-		return msg;
+		return msgs.peek(idx);
 	}
 
+	/**
+	 * remove the idx'th buffered message. consumer only, ie it must not run
+	 * concurrently with get or another remove
+	 * 
+	 * @throws IllegalStateException
+	 *             if there's no idx'th message, or it or an earlier one has
+	 *             been claimed by a producer but not yet written
+	 */
 	public T remove(final int idx) {
 		assert idx >= 0 : "negative index";
-		T msg;
-		synchronized (this) {
-			int n = numMsgs;
-			assert idx < numMsgs;
-			if (idx < n) {
-				int ic = icons;
-				int mlen = msgs.length;
-				msg = msgs[(ic + idx) % mlen];
-				for (int i = idx; i > 0; i--) {
-					msgs[(ic + i) % mlen] = msgs[(ic + i - 1) % mlen];
-				}
-				msgs[icons] = null;
-				numMsgs -= 1;
-				icons = (icons + 1) % mlen;
-			} else {
-				throw new IllegalStateException();
-			}
-		}
-		return msg;
+		return msgs.remove(idx);
 	}
 
-	public synchronized Object[] messages() {
-		synchronized (this) {
-			Object[] result = new Object[numMsgs];
-			for (int i = 0; i < numMsgs; i++) {
-				result[i] = msgs[(icons + i) % msgs.length];
-			}
-			return result;
+	/**
+	 * a copy of the buffered messages, oldest first, stopping at the first
+	 * slot that's not yet written. on any thread but the consumer's it's an
+	 * approximate snapshot, since puts and gets aren't excluded while it's
+	 * taken
+	 */
+	public Object[] messages() {
+		int n = msgs.size();
+		Object[] result = new Object[n];
+		int i = 0;
+		for (Object msg; i < n && (msg = msgs.peek(i)) != null; i++) {
+			result[i] = msg;
 		}
-
+		return i==n ? result : java.util.Arrays.copyOf(result, i);
 	}
 
 
@@ -307,51 +331,45 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
      * Takes an array of mailboxes and returns the index of the first mailbox
      * that has a message. It is possible that because of race conditions, an
      * earlier mailbox in the list may also have received a message.
+     * @see Selector
      */
-    // TODO: need timeout variant
-    @SuppressWarnings("unchecked")
     public static int select(Mailbox... mboxes) throws Pausable {
-        while (true) {
-            for (int i = 0; i < mboxes.length; i++) {
-                if (mboxes[i].hasMessage()) {
-                    return i;
-                }
-            }
-            Task t = Task.getCurrentTask();
-            EmptySet_MsgAvListener pauseReason = 
-                    new EmptySet_MsgAvListener(t, mboxes);
-            for (int i = 0; i < mboxes.length; i++) {
-                mboxes[i].addMsgAvailableListener(pauseReason);
-            }
-            Task.pause(pauseReason);
-            for (int i = 0; i < mboxes.length; i++) {
-                mboxes[i].removeMsgAvailableListener(pauseReason);
-            }
-        }
+        return Selector.select(mboxes);
+    }
+
+    /**
+     * as select(Mailbox...), but pausing for at most timeoutMillis
+     * @return the index of the first mailbox that has a message, or -1 on timeout
+     */
+    public static int select(long timeoutMillis, Mailbox... mboxes) throws Pausable {
+        return Selector.select(timeoutMillis, mboxes);
     }
 
-    public synchronized void addSpaceAvailableListener(EventSubscriber spcSub) {
+    public void addSpaceAvailableListener(EventSubscriber spcSub) {
         srcs.add(spcSub);
     }
 
-    public synchronized void removeSpaceAvailableListener(EventSubscriber spcSub) {
+    public void removeSpaceAvailableListener(EventSubscriber spcSub) {
         srcs.remove(spcSub);
     }
 
 
-    public synchronized void addMsgAvailableListener(EventSubscriber msgSub) {
-        if (sink != null && sink != msgSub) {
+    public void addMsgAvailableListener(EventSubscriber msgSub) {
+        EventSubscriber prev = sink;
+        if (prev != msgSub && !sinkUpdater.compareAndSet(this, null, msgSub)) {
             throw new AssertionError(
                     "Error: A mailbox can not be shared by two consumers.  New = "
                             + msgSub + ", Old = " + sink);
         }
-        sink = msgSub;
     }
 
-    public synchronized void removeMsgAvailableListener(EventSubscriber msgSub) {
-        if (sink == msgSub) {
-            sink = null;
-        }
+    public void removeMsgAvailableListener(EventSubscriber msgSub) {
+        sinkUpdater.compareAndSet(this, msgSub, null);
+    }
+
+    public void release(Task t) {
+        removeMsgAvailableListener(t);
+        removeSpaceAvailableListener(t);
     }
 
     /**
@@ -397,6 +415,26 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
         return true;
     }
     
+    /**
+     * put all of the non-null messages in buf, pausing the calling task whenever the mailbox is full
+     */
+    public void putAll(T [] buf) throws Pausable {
+        Task t = Task.getCurrentTask();
+        int num = 0;
+        while ((num += putAll(buf, num, buf.length-num, t)) < buf.length) {
+            Task.pause(this);
+            removeSpaceAvailableListener(t);
+        }
+    }
+
+    /**
+     * put as many of the messages in buf as fit, without pausing or blocking
+     * @return the number of messages put, a prefix of buf
+     */
+    public int putAllnb(T [] buf) {
+        return putAll(buf, 0, buf.length, null);
+    }
+
     public void putb(T msg) {
         putb(msg, 0 /* infinite wait */);
     }
@@ -433,6 +471,8 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
                 }
                 if (!eventRcvd)
                     removeSpaceAvailableListener(this);
+                // consume the event, so that a retry that fails waits for the next one
+                eventRcvd = false;
             }
             return current < fin;
         }
@@ -451,16 +491,16 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
         return success;
     }
 
-    public synchronized int size() {
-        return numMsgs;
+    public int size() {
+        return msgs.size();
     }
     
-    public synchronized boolean hasMessage() {
-        return numMsgs > 0;
+    public boolean hasMessage() {
+        return msgs.peek(0) != null;
     }
 
-    public synchronized boolean hasSpace() {
-        return (maxMsgs - numMsgs) > 0;
+    public boolean hasSpace() {
+        return (maxMsgs - msgs.size()) > 0;
     }
 
     /**
@@ -486,54 +526,17 @@ public class Mailbox<T> implements PauseReason, EventPublisher {
         return msg;
     }
 
-    public synchronized String toString() {
+    public String toString() {
         return "id:" + System.identityHashCode(this) + " " +
         // DEBUG "nGet:" + nGet + " " +
                 // "nPut:" + nPut + " " +
                 // "numWastedPuts:" + nWastedPuts + " " +
                 // "nWastedGets:" + nWastedGets + " " +
-                "numMsgs:" + numMsgs;
+                "numMsgs:" + msgs.size();
     }
 
     // Implementation of PauseReason
     public boolean isValid(Task t) {
-        synchronized(this) {
-            return ((t == sink) || srcs.contains(t)) && ! t.checkTimeout();
-        }
-    }
-}
-
-class EmptySet_MsgAvListener implements PauseReason, EventSubscriber {
-    final Task task;
-    final Mailbox<?>[] mbxs;
-
-    EmptySet_MsgAvListener(Task t, Mailbox<?>[] mbs) {
-        task = t;
-        mbxs = mbs;
-    }
-
-    public boolean isValid(Task t) {
-        // The pauseReason is true (there is valid reason to continue
-        // pausing) if none of the mboxes have any elements
-        for (Mailbox<?> mb : mbxs) {
-            if (mb.hasMessage())
-                return false;
-        }
-        return true;
-    }
-
-    public void onEvent(EventPublisher ep, Event e) {
-        for (Mailbox<?> m : mbxs) {
-            if (m != ep) {
-                ((Mailbox<?>)ep).removeMsgAvailableListener(this);
-            }
-        }
-        task.resume();
-    }
-
-    public void cancel() {
-        for (Mailbox<?> mb : mbxs) {
-            mb.removeMsgAvailableListener(this);
-        }
+        return ((t == sink) || srcs.contains(t)) && ! t.checkTimeout();
     }
 }
@@ -0,0 +1,240 @@
+package kilim;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import kilim.concurrent.LinkedMPSCQueue;
+
+/**
+ * an unbounded mailbox for many producers and a single consumer, eg an aggregator actor with
+ * unpredictable fan-in. messages are held in a LinkedMPSCQueue, so a put is wait-free and never fails or
+ * pauses, and nodes are recycled rather than the buffer grown by copying. the consumer side, ie get,
+ * select and the pause and wakeup of the consumer task, works as for Mailbox
+ *
+ * there is no limit on the number of buffered messages, so a consumer that falls behind holds on to
+ * them all. use a bounded Mailbox or MailboxMPSC where producers need backpressure
+ */
+public class MailboxLinked<T> implements Releasable, Selectable {
+    LinkedMPSCQueue<T> msgs = new LinkedMPSCQueue<T>();
+    volatile EventSubscriber sink;
+    private static final AtomicReferenceFieldUpdater<MailboxLinked,EventSubscriber> sinkUpdater
+            = AtomicReferenceFieldUpdater.newUpdater(MailboxLinked.class,EventSubscriber.class,"sink");
+
+    public static final Event messageAvailable = Mailbox.messageAvailable;
+
+    /**
+     * Non-blocking, nonpausing get.
+     * @param eo. If non-null, registers this observer and calls it with a MessageAvailable event when
+     *  a put() is done.
+     * @return buffered message if there's one, or null
+     */
+    public T get(EventSubscriber eo) {
+        T msg = msgs.poll();
+        if (msg == null && eo != null) {
+            addMsgAvailableListener(eo);
+            // a put that missed the registration must be visible now
+            msg = msgs.poll();
+            if (msg != null)
+                sinkUpdater.compareAndSet(this, eo, null);
+        }
+        return msg;
+    }
+
+    /**
+     * Non-blocking, nonpausing batch get, as get(EventSubscriber) but moving up to len messages into buf
+     * @return the number of messages moved, starting at buf[offset]
+     */
+    public int getAll(T [] buf, int offset, int len, EventSubscriber eo) {
+        int num = msgs.drain(buf, offset, len);
+        if (num == 0 && eo != null) {
+            addMsgAvailableListener(eo);
+            num = msgs.drain(buf, offset, len);
+            if (num > 0)
+                sinkUpdater.compareAndSet(this, eo, null);
+        }
+        return num;
+    }
+
+    /**
+     * put a non-null message, which never fails or waits, and signal the consumer
+     */
+    public void put(T msg) {
+        msgs.offer(msg);
+        wakeConsumer();
+    }
+
+    /** put all the non-null messages in buf, signalling the consumer once */
+    public void putAll(T [] buf) {
+        for (T msg : buf)
+            if (msg == null)
+                throw new NullPointerException("Null message supplied to putAll");
+        for (T msg : buf)
+            msgs.offer(msg);
+        wakeConsumer();
+    }
+
+    /** as put(T), for symmetry with the bounded mailboxes. always returns true */
+    public boolean putnb(T msg) {
+        put(msg);
+        return true;
+    }
+
+    private void wakeConsumer() {
+        if (sink != null) {
+            EventSubscriber subscriber = sinkUpdater.getAndSet(this, null);
+            if (subscriber != null)
+                subscriber.onEvent(this, messageAvailable);
+        }
+    }
+
+    /**
+     * Get, don't pause or block.
+     *
+     * @return stored message, or null if no message found.
+     */
+    public T getnb() {
+        return get(null);
+    }
+
+    /**
+     * @return non-null message.
+     * @throws Pausable
+     */
+    public T get() throws Pausable {
+        Task t = Task.getCurrentTask();
+        T msg = get(t);
+        while (msg == null) {
+            Task.pause(this);
+            removeMsgAvailableListener(t);
+            msg = get(t);
+        }
+        return msg;
+    }
+
+    /**
+     * @return non-null message, or null if timed out.
+     * @throws Pausable
+     */
+    public T get(long timeoutMillis) throws Pausable {
+        final Task t = Task.getCurrentTask();
+        T msg = get(t);
+        long begin = System.currentTimeMillis();
+        long time = timeoutMillis;
+        while (msg == null) {
+            t.timer.setTimer(time);
+            t.scheduler.scheduleTimer(t.timer);
+            Task.pause(this);
+            t.timer.cancel();
+            removeMsgAvailableListener(t);
+            time = timeoutMillis - (System.currentTimeMillis() - begin);
+            if (time <= 0) {
+                break;
+            }
+            msg = get(t);
+        }
+        return msg;
+    }
+
+    /**
+     * get at least one message, and up to buf.length, pausing until one is available
+     * @return the number of messages moved into buf
+     * @throws Pausable
+     */
+    public int getAll(T [] buf) throws Pausable {
+        Task t = Task.getCurrentTask();
+        int num = getAll(buf, 0, buf.length, t);
+        while (num == 0) {
+            Task.pause(this);
+            removeMsgAvailableListener(t);
+            num = getAll(buf, 0, buf.length, t);
+        }
+        return num;
+    }
+
+    /**
+     * get up to buf.length messages without pausing
+     * @return the number of messages moved into buf, possibly zero
+     */
+    public int getAllnb(T [] buf) {
+        return getAll(buf, 0, buf.length, null);
+    }
+
+    /**
+     * retrieve a msg, and block the Java thread for the time given, zero to wait indefinitely
+     *
+     * @param millis. max wait time
+     * @return null if timed out.
+     */
+    public T getb(final long timeoutMillis) {
+        BlockingSubscriber evs = new BlockingSubscriber();
+        long fin = System.currentTimeMillis() + timeoutMillis;
+        T msg;
+        while ((msg = get(evs)) == null && evs.blockingWait(timeoutMillis==0 ? 0 : fin)) {}
+        removeMsgAvailableListener(evs);
+        return msg;
+    }
+
+    public T getb() {
+        return getb(0);
+    }
+
+    class BlockingSubscriber implements EventSubscriber {
+        boolean eventRcvd;
+
+        public void onEvent(EventPublisher ep, Event e) {
+            synchronized (MailboxLinked.this) {
+                eventRcvd = true;
+                MailboxLinked.this.notify();
+            }
+        }
+        /** wait for an event until fin, zero to wait indefinitely, returning false on timeout */
+        boolean blockingWait(long fin) {
+            synchronized (MailboxLinked.this) {
+                long now = 0;
+                while (!eventRcvd && (fin==0 || (now = System.currentTimeMillis()) < fin)) {
+                    try {
+                        MailboxLinked.this.wait(fin==0 ? 0 : fin-now);
+                    }
+                    catch (InterruptedException ie) {}
+                }
+                boolean ret = eventRcvd;
+                eventRcvd = false;
+                return ret;
+            }
+        }
+    }
+
+    public boolean hasMessage() {
+        return !msgs.isEmpty();
+    }
+
+    /** the number of buffered messages, which takes time linear in the number */
+    public int size() {
+        return msgs.size();
+    }
+
+    public void addMsgAvailableListener(EventSubscriber msgSub) {
+        EventSubscriber prev = sink;
+        if (prev != msgSub && !sinkUpdater.compareAndSet(this, null, msgSub)) {
+            throw new AssertionError(
+                    "Error: A mailbox can not be shared by two consumers.  New = "
+                            + msgSub + ", Old = " + sink);
+        }
+    }
+
+    public void removeMsgAvailableListener(EventSubscriber msgSub) {
+        sinkUpdater.compareAndSet(this, msgSub, null);
+    }
+
+    public void release(Task t) {
+        removeMsgAvailableListener(t);
+    }
+
+    public String toString() {
+        return "id:" + System.identityHashCode(this) + " numMsgs:" + msgs.size();
+    }
+
+    // Implementation of PauseReason
+    public boolean isValid(Task t) {
+        return t == sink && ! t.checkTimeout();
+    }
+}
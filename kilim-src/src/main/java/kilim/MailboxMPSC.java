@@ -6,14 +6,19 @@
 
 package kilim;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 import kilim.concurrent.MPSCQueue;
+import kilim.concurrent.UnsafeAccess;
 import kilim.concurrent.VolatileReferenceCell;
 
 /**
- * This is a typed buffer that supports single producers and a single consumer.
+ * This is a typed buffer that supports multiple producers and a single consumer.
  * It is the basic construct used for tasks to interact and synchronize with
  * each other (as opposed to direct java calls or static member variables).
  * put() and get() are the two essential functions.
@@ -22,18 +27,33 @@ import kilim.concurrent.VolatileReferenceCell;
  * pausing. The suffix "nb" on some methods (such as getnb()) stands for
  * non-blocking. Both put() and get() have blocking and non-blocking variants in
  * the form of putb(), putnb
+ * 
+ * In backpressure mode, producers that find the mailbox full are admitted in
+ * FIFO order: a producer that finds others waiting queues behind them, and each
+ * slot freed by the consumer is granted to exactly one waiting producer. The
+ * mode also keeps counters of rejected offers, paused producers and the
+ * high-water mark of the queue, for sizing mailboxes.
  */
 
-public class MailboxMPSC<T> implements PauseReason, EventPublisher {
+public class MailboxMPSC<T> implements Releasable, Selectable {
 	// TODO. Give mbox a config name and id and make monitorable
 
         MPSCQueue<T> msgs;
     
 	VolatileReferenceCell<EventSubscriber> sink = new VolatileReferenceCell<EventSubscriber>
             ();
-	Queue
+	Deque
             <EventSubscriber> srcs = new 
-                ConcurrentLinkedQueue<EventSubscriber>();
+                ConcurrentLinkedDeque<EventSubscriber>();
+
+	final boolean fair;
+	// backpressure mode only: the waiting producers that have been granted a
+	// freed slot and not yet used it, and the counters
+	Set<EventSubscriber> grants;
+	private final LongAdder rejected, paused;
+	private volatile int highWater;
+	private static final AtomicIntegerFieldUpdater<MailboxMPSC> highWaterUpdater = AtomicIntegerFieldUpdater
+			.newUpdater(MailboxMPSC.class, "highWater");
 
 	// FIX: I don't like this event design. The only good thing is that
 	// we don't create new event objects every time we signal a client
@@ -56,9 +76,22 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
 		this(10);
 	}
 
-	@SuppressWarnings("unchecked")
 	public MailboxMPSC(int initialSize) {
+		this(initialSize, false);
+	}
+
+	/**
+	 * @param backpressure
+	 *            . If true, producers blocked on a full mailbox are admitted
+	 *            in FIFO order, one per freed slot, and the counters are kept
+	 */
+	@SuppressWarnings("unchecked")
+	public MailboxMPSC(int initialSize, boolean backpressure) {
 		msgs = new MPSCQueue(initialSize);
+		fair = backpressure;
+		grants = fair ? ConcurrentHashMap.<EventSubscriber> newKeySet() : null;
+		rejected = fair ? new LongAdder() : null;
+		paused = fair ? new LongAdder() : null;
 	}
 
 	/**
@@ -78,6 +111,12 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
 			}
 		}
 
+		if (fair) {
+			if (e != null) {
+				freed();
+			}
+			return e;
+		}
 		producer = getProducer();
 		if (producer != null) {
 			producer.onEvent(this, spaceAvailble);
@@ -86,14 +125,34 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
 	}
 
 	public boolean put(T msg, EventSubscriber eo) {
+		return put(msg, eo, false);
+	}
+
+	/**
+	 * @param queued
+	 *            true if eo is known to be waiting already, ie in backpressure
+	 *            mode it keeps its place rather than being looked up
+	 */
+	private boolean put(T msg, EventSubscriber eo, boolean queued) {
 		if (msg == null) {
 			throw new NullPointerException("Null is not a valid element");
 		}
 		EventSubscriber subscriber;
-		boolean b = msgs.offer(msg);
-		if (!b) {
-			if (eo != null) {
-				addSpaceAvailableListener(eo);
+		boolean b;
+		if (fair) {
+			boolean granted = isGranted(eo);
+			b = (granted || isOpen()) && msgs.offer(msg);
+			if (b) {
+				mark();
+			} else {
+				waitFor(eo, granted, queued);
+			}
+		} else {
+			b = msgs.offer(msg);
+			if (!b) {
+				if (eo != null) {
+					addSpaceAvailableListener(eo);
+				}
 			}
 		}
 		subscriber = sink.getAndSet(null);
@@ -104,6 +163,80 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
 		return b;
 	}
 
+	/**
+	 * Non-blocking, nonpausing batch get, waking a waiting producer for each
+	 * slot freed.
+	 * 
+	 * @param eo
+	 *            . If non-null and no message is available, registers this
+	 *            observer as in get(EventSubscriber)
+	 * @return the number of messages moved into buf, starting at offset
+	 */
+	public int getAll(T[] buf, int offset, int len, EventSubscriber eo) {
+		int n = msgs.drain(buf, offset, len);
+		if (n == 0) {
+			if (eo != null) {
+				addMsgAvailableListener(eo);
+			}
+		}
+		if (fair) {
+			if (n > 0) {
+				freed();
+			}
+			return n;
+		}
+		EventSubscriber producer;
+		for (int i = 0; i < n && (producer = getProducer()) != null; i++) {
+			producer.onEvent(this, spaceAvailble);
+		}
+		return n;
+	}
+
+	/**
+	 * Non-blocking, nonpausing batch put. The slots for the run are claimed
+	 * with a single CAS and the consumer is signalled once.
+	 * 
+	 * @param eo
+	 *            . If non-null and not all of the messages fit, registers this
+	 *            observer as in put(T,EventSubscriber)
+	 * @return the number of messages put, starting at offset
+	 */
+	public int putAll(T[] buf, int offset, int len, EventSubscriber eo) {
+		for (int i = offset; i < offset + len; i++) {
+			if (buf[i] == null) {
+				throw new NullPointerException("Null is not a valid element");
+			}
+		}
+		int n;
+		if (fair) {
+			boolean granted = isGranted(eo);
+			n = granted || isOpen() ? msgs.offerAll(buf, offset, len) : 0;
+			if (n > 0) {
+				mark();
+			}
+			if (n < len) {
+				waitFor(eo, granted, false);
+			}
+		} else {
+			n = msgs.offerAll(buf, offset, len);
+			if (n < len && eo != null) {
+				addSpaceAvailableListener(eo);
+				// space freed before the registration must be visible now
+				n += msgs.offerAll(buf, offset + n, len - n);
+				if (n == len) {
+					removeSpaceAvailableListener(eo);
+				}
+			}
+		}
+		if (n > 0) {
+			EventSubscriber subscriber = sink.getAndSet(null);
+			if (subscriber != null) {
+				subscriber.onEvent(this, messageAvailable);
+			}
+		}
+		return n;
+	}
+
 	/**
 	 * Get, don't pause or block.
 	 * 
@@ -151,6 +284,34 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
 		}
 		return msg;
 	}
+
+	/**
+	 * get at least one message, and up to buf.length, pausing until one is
+	 * available
+	 * 
+	 * @return the number of messages moved into buf
+	 * @throws Pausable
+	 */
+	public int getAll(T[] buf) throws Pausable {
+		Task t = Task.getCurrentTask();
+		int n = getAll(buf, 0, buf.length, t);
+		while (n == 0) {
+			Task.pause(this);
+			removeMsgAvailableListener(t);
+			n = getAll(buf, 0, buf.length, t);
+		}
+		return n;
+	}
+
+	/**
+	 * get up to buf.length messages without pausing
+	 * 
+	 * @return the number of messages moved into buf, possibly zero
+	 */
+	public int getAllnb(T[] buf) {
+		return getAll(buf, 0, buf.length, null);
+	}
+
         /**
 	 * Attempt to put a message, and return true if successful. The thread is
 	 * not blocked, nor is the task paused under any circumstance.
@@ -159,22 +320,116 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
 		return put(msg, null);
 	}
 
-        synchronized         
 	public void addSpaceAvailableListener(EventSubscriber spcSub) {
 		srcs.offer(spcSub);
 	}
-        synchronized 
+
 	public void removeSpaceAvailableListener(EventSubscriber spcSub) {
-		srcs.remove(spcSub);
+		if (fair) {
+			withdraw(spcSub);
+		} else {
+			srcs.remove(spcSub);
+		}
 	}
-        synchronized 
+
 	public void addMsgAvailableListener(EventSubscriber msgSub) {
 		sink.set(msgSub);
 	}
-        synchronized 
+
 	public void removeMsgAvailableListener(EventSubscriber msgSub) {
 		sink.set(null);
 	}
+
+	// backpressure mode: whether eo holds a grant, which it uses up
+	private boolean isGranted(EventSubscriber eo) {
+		return eo != null && !grants.isEmpty() && grants.remove(eo);
+	}
+
+	// backpressure mode: whether a producer may offer without a grant, ie
+	// none is waiting ahead of it
+	private boolean isOpen() {
+		return srcs.isEmpty() && grants.isEmpty();
+	}
+
+	// backpressure mode: queue a producer that wasn't admitted, at the head if
+	// a barging producer took the slot it was granted
+	private void waitFor(EventSubscriber eo, boolean granted, boolean queued) {
+		rejected.increment();
+		if (eo == null) {
+			return;
+		}
+		if (granted) {
+			srcs.offerFirst(eo);
+		} else if (!queued && !srcs.contains(eo)) {
+			srcs.offer(eo);
+			paused.increment();
+		}
+		// the consumer may have freed space before eo was queued
+		grantFree();
+	}
+
+	// backpressure mode: the consumer freed space. the head is published with an
+	// ordered store, so fence it from the read of srcs, else a producer that
+	// found the mailbox full and queued meanwhile could miss its grant
+	private void freed() {
+		UnsafeAccess.UNSAFE.fullFence();
+		grantFree();
+	}
+
+	// backpressure mode: grant each free slot that isn't already granted to the
+	// producer at the head of the queue, and wake it
+	private void grantFree() {
+		EventSubscriber producer;
+		while (!srcs.isEmpty() && msgs.size() + grants.size() < msgs.capacity()
+				&& (producer = srcs.poll()) != null) {
+			grants.add(producer);
+			producer.onEvent(this, spaceAvailble);
+		}
+	}
+
+	// backpressure mode: a producer that stops waiting passes on its grant
+	private void withdraw(EventSubscriber eo) {
+		if (!srcs.remove(eo) && grants.remove(eo)) {
+			grantFree();
+		}
+	}
+
+	private void mark() {
+		int size = msgs.size();
+		int hw;
+		while (size > (hw = highWater)
+				&& !highWaterUpdater.compareAndSet(this, hw, size)) {
+		}
+	}
+
+	/**
+	 * backpressure mode: the number of offers that found the mailbox full or
+	 * other producers waiting, zero otherwise
+	 */
+	public long rejectedOffers() {
+		return fair ? rejected.sum() : 0;
+	}
+
+	/**
+	 * backpressure mode: the number of producers that have queued to wait for
+	 * space, zero otherwise
+	 */
+	public long pausedProducers() {
+		return fair ? paused.sum() : 0;
+	}
+
+	/**
+	 * backpressure mode: the most messages held at once, zero otherwise
+	 */
+	public int highWater() {
+		return highWater;
+	}
+
+	// unlike removeMsgAvailableListener, the task may be a producer, so only clear the sink if it's the task
+	public void release(Task t) {
+		sink.compareAndSet(t, null);
+		removeSpaceAvailableListener(t);
+	}
         private EventSubscriber getProducer() {
             return srcs.poll();
         }
@@ -185,6 +440,10 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
             return msgs.size();
         }
 
+	public boolean hasMessage() {
+		return !msgs.isEmpty();
+	}
+
 
 	/**
 	 * put a non-null message in the mailbox, and pause the calling task until
@@ -193,12 +452,42 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
 
 	public void put(T msg) throws Pausable {
 		Task t = Task.getCurrentTask();
-		while (!put(msg, t)) {
+		// in backpressure mode the task stays queued across resumes, so that
+		// it doesn't lose its place
+		boolean queued = false;
+		while (!put(msg, t, queued)) {
+			queued = fair;
+			Task.pause(this);
+			if (!fair) {
+				removeSpaceAvailableListener(t);
+			}
+		}
+	}
+
+	/**
+	 * put all of the non-null messages in buf, pausing the calling task
+	 * whenever the mailbox is full
+	 */
+	public void putAll(T[] buf) throws Pausable {
+		Task t = Task.getCurrentTask();
+		int n = 0;
+		while ((n += putAll(buf, n, buf.length - n, t)) < buf.length) {
 			Task.pause(this);
-			removeSpaceAvailableListener(t);
+			if (!fair) {
+				removeSpaceAvailableListener(t);
+			}
 		}
 	}
 
+	/**
+	 * put as many of the messages in buf as fit, without pausing or blocking
+	 * 
+	 * @return the number of messages put, a prefix of buf
+	 */
+	public int putAllnb(T[] buf) {
+		return putAll(buf, 0, buf.length, null);
+	}
+
 	/**
 	 * put a non-null message in the mailbox, and pause the calling task for
 	 * timeoutMillis if the mailbox is full.
@@ -208,13 +497,17 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
 		final Task t = Task.getCurrentTask();
 		long begin = System.currentTimeMillis();
 		long time = timeoutMillis;
-		while (!put(msg, t)) {
+		boolean queued = false;
+		while (!put(msg, t, queued)) {
+			queued = fair;
 			t.timer.setTimer(time);
 			t.scheduler.scheduleTimer(t.timer);
 			Task.pause(this);
 			t.timer.cancel();
-			removeSpaceAvailableListener(t);
 			time = timeoutMillis - (System.currentTimeMillis() - begin);
+			if (!fair || time <= 0) {
+				removeSpaceAvailableListener(t);
+			}
 			if (time <= 0) {
 				return false;
 			}
@@ -233,7 +526,7 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
         
         
         
-        public synchronized String toString() {
+        public String toString() {
 		return "id:" + System.identityHashCode(this) + " " +
 				"numMsgs:" + getSize();
 	}
@@ -244,11 +537,17 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
         
         
 
-        synchronized 
         // Implementation of PauseReason
 	public boolean isValid(Task t) {
 		if (t == sink.get()) {
 			return msgs.isEmpty();
+		} else if (fair) {
+			// a waiting producer is either queued or granted a slot. the head of
+			// the queue retries if there's space that hasn't been granted
+			return !grants.contains(t)
+					&& !(srcs.peekFirst() == t
+							&& msgs.size() + grants.size() < msgs.capacity())
+					&& !t.checkTimeout();
 		} else if (srcContains(t)) {
 			return !msgs.hasSpace();
 		} else {
@@ -257,11 +556,9 @@ public class MailboxMPSC<T> implements PauseReason, EventPublisher {
 	}
 
 	public void fill(T[] msg) {
-		for (int i = 0; i < msg.length; i++) {
-			msg[i] = getnb();
-			if (msg[i] == null) {
-				break;
-			}
+		int n = getAllnb(msg);
+		if (n < msg.length) {
+			msg[n] = null;
 		}
 	}
 
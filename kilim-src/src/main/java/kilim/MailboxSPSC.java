@@ -22,7 +22,7 @@ import kilim.concurrent.VolatileReferenceCell;
  * the form of putb(), putnb
  */
 
-public class MailboxSPSC<T> implements PauseReason,
+public class MailboxSPSC<T> implements Releasable,
 		EventPublisher {
 	// TODO. Give mbox a config name and id and make monitorable
 
@@ -203,6 +203,11 @@ public class MailboxSPSC<T> implements PauseReason,
 	public void removeMsgAvailableListener(EventSubscriber msgSub) {
 		sink.compareAndSet(msgSub, null);
 	}
+
+	public void release(Task t) {
+		removeMsgAvailableListener(t);
+		removeSpaceAvailableListener(t);
+	}
         private EventSubscriber getProducer() {
             return srcs.getAndSet(null);
         }
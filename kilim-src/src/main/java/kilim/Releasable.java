@@ -0,0 +1,12 @@
+package kilim;
+
+/**
+ * a PauseReason that holds on to the tasks paused on it, eg as listeners. a cancelled task unwinds
+ * with an exception rather than returning to the code that would otherwise unregister it, so it is
+ * released instead
+ * @see Task#cancel()
+ */
+public interface Releasable extends PauseReason {
+    /** drop any reference to the task, which is no longer waiting */
+    void release(Task t);
+}
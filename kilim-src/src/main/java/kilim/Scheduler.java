@@ -5,7 +5,11 @@
  */
 package kilim;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kilim.concurrent.Quiescence;
 
 import kilim.nio.NioSelectorScheduler.RegistrationTask;
 import kilim.timerservice.Timer;
@@ -25,6 +29,10 @@ public abstract class Scheduler {
     public static Logger defaultLogger = new BasicLogger();
 
     protected AtomicBoolean shutdown = new AtomicBoolean(false);
+    /** signaled when the count of scheduled and running tasks drops to zero, for idledown and waitIdle */
+    protected Quiescence quiescence = new Quiescence();
+    /** the metrics, or null if not enabled */
+    protected volatile SchedulerMetrics metrics;
     
     private Logger logger = defaultLogger;
 
@@ -62,6 +70,19 @@ public abstract class Scheduler {
     public abstract boolean isEmptyish();
 
     public abstract int numThreads();
+
+    /**
+     * enable the collection of metrics, eg queue depth and scheduling latency, for each worker.
+     * there is a small cost on each run, so metrics are off by default
+     * @return the metrics, or null if this scheduler doesn't support them
+     */
+    public SchedulerMetrics enableMetrics() { return null; }
+
+    /** return the metrics, or null if not enabled */
+    public SchedulerMetrics getMetrics() { return metrics; }
+
+    /** return the number of tasks published to a worker and not yet finished, or -1 if unknown */
+    public int queueDepth(int worker) { return -1; }
     
     public boolean isPinnable() { return true; }
         
@@ -84,6 +105,115 @@ public abstract class Scheduler {
      */
     public abstract void schedule(int index,Task t);
 
+    /**
+     * schedule a group of tasks that have been resumed, ie marked running, together.
+     * subclasses should override this to amortize the cost of publishing, eg signaling each worker once
+     * @param tasks the tasks, each of which belongs to this scheduler
+     * @param num the number of tasks to schedule, starting at index zero
+     */
+    public void scheduleAll(Task [] tasks,int num) {
+        for (int ii=0; ii < num; ii++) {
+            Task t = tasks[ii];
+            int index = t.preferredResumeThread;
+            if (index == -1)
+                schedule(t);
+            else
+                schedule(index,t);
+        }
+    }
+
+    /** the number of threads with an open batch, so that resume can skip the thread local otherwise */
+    private static final AtomicInteger numBatches = new AtomicInteger();
+    private static final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+
+    /**
+     * open a batch on the calling thread. until the matching flushBatch, tasks resumed by this thread are
+     * collected instead of being scheduled one at a time, eg for a burst of wakeups from a selector pass.
+     * batches nest, and only the outermost flush schedules the tasks
+     */
+    public static void openBatch() {
+        Batch batch = batches.get();
+        if (batch==null)
+            batches.set(batch = new Batch());
+        if (batch.depth++ == 0)
+            numBatches.incrementAndGet();
+    }
+
+    /** close the batch opened by openBatch, and if it's the outermost, schedule the collected tasks */
+    public static void flushBatch() {
+        Batch batch = batches.get();
+        if (--batch.depth > 0) return;
+        numBatches.decrementAndGet();
+        batch.flush();
+    }
+
+    /** called by Task.resume, collect the task if the calling thread has an open batch */
+    static boolean defer(Task t) {
+        if (numBatches.get()==0 || t instanceof RegistrationTask)
+            return false;
+        Batch batch = batches.get();
+        if (batch==null || batch.depth==0)
+            return false;
+        batch.add(t);
+        return true;
+    }
+
+    static class Batch {
+        int depth, size;
+        Task [] tasks = new Task[64], group = new Task[64];
+
+        void add(Task t) {
+            if (size==tasks.length) {
+                tasks = Arrays.copyOf(tasks,2*size);
+                group = new Task[2*size];
+            }
+            tasks[size++] = t;
+        }
+
+        /** schedule the tasks, grouped by scheduler */
+        void flush() {
+            int num = size;
+            size = 0;
+            for (int ii=0; ii < num; ii++) {
+                Task t = tasks[ii];
+                if (t==null) continue;
+                Scheduler sched = t.scheduler;
+                int k = 0;
+                for (int jj=ii; jj < num; jj++)
+                    if (tasks[jj] != null && tasks[jj].scheduler==sched) {
+                        group[k++] = tasks[jj];
+                        tasks[jj] = null;
+                    }
+                sched.scheduleAll(group,k);
+                Arrays.fill(group,0,k,null);
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() { return new Scratch(); }
+    };
+
+    /** the scratch arrays of the calling thread, with room for at least num entries */
+    static Scratch scratch(int num) {
+        Scratch scratch = scratches.get();
+        if (scratch.ints.length < num) {
+            int size = Math.max(num,2*scratch.ints.length);
+            scratch.ints = new int[size];
+            scratch.tasks = new Task[size];
+        }
+        return scratch;
+    }
+
+    /**
+     * per-thread arrays for scheduleAll, so that grouping a batch doesn't allocate. ints may hold anything
+     * left by the last user, while tasks must be left cleared so that it holds on to no task
+     */
+    static class Scratch {
+        int [] ints = new int[64];
+        Task [] tasks = new Task[64];
+    }
+
     public abstract void scheduleTimer(Timer t);
 
     /**
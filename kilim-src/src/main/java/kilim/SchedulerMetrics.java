@@ -0,0 +1,218 @@
+package kilim;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * opt-in runtime metrics for a scheduler, enabled with Scheduler.enableMetrics
+ *
+ * each worker records into its own stripe, so the hot path is a few plain increments with no allocation,
+ * locking or atomic operations. the stripes aren't padded, so neighbouring workers may still share a cache
+ * line at the edges of their counters. readers take a snapshot, which is approximate (ie, values may be slightly stale
+ * or mutually inconsistent) but never blocks the workers
+ */
+public class SchedulerMetrics {
+    /** the maximum number of distinct PauseReason classes tracked, the rest are counted as Object */
+    public static final int MAX_REASONS = 32;
+    private static final AtomicInteger numReasons = new AtomicInteger(1);
+    private static final Class [] reasons = new Class[MAX_REASONS];
+    static { reasons[0] = Object.class; }
+    private static final ClassValue<Integer> reasonIndex = new ClassValue<Integer>() {
+        protected Integer computeValue(Class<?> type) {
+            int index = numReasons.getAndIncrement();
+            if (index >= MAX_REASONS)
+                return 0;
+            reasons[index] = type;
+            return index;
+        }
+    };
+
+    final Scheduler scheduler;
+    final Stripe [] stripes;
+
+    SchedulerMetrics(Scheduler scheduler,int numStripes) {
+        this.scheduler = scheduler;
+        stripes = new Stripe[numStripes];
+        for (int ii=0; ii < numStripes; ii++)
+            stripes[ii] = new Stripe();
+    }
+
+    /** the stripe for a worker, wrapping if the scheduler has more workers than stripes */
+    Stripe stripe(int worker) {
+        return stripes[(worker & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /**
+     * record a run, called by the worker after the runnable returns
+     * @param worker the index of the worker that ran it
+     * @param runnable the task (or other runnable) that was run
+     * @param start the System.nanoTime at which the run started
+     * @param end the System.nanoTime at which the run ended
+     */
+    void record(int worker,Runnable runnable,long start,long end) {
+        Stripe stripe = stripe(worker);
+        stripe.executed++;
+        stripe.runTime.record(end-start);
+        if (runnable instanceof Task) {
+            Task task = (Task) runnable;
+            long resumed = task.resumedAt;
+            if (resumed != 0)
+                stripe.latency.record(start-resumed);
+        }
+    }
+
+    /** record the reason that a run ended, called by Task.run with the tid of the worker */
+    void pause(int worker,Class reason) {
+        stripe(worker).pauses[reasonIndex.get(reason)]++;
+    }
+
+    /** record a successful steal by the worker */
+    void steal(int worker) {
+        stripe(worker).steals++;
+    }
+
+    /** the counters for a single worker, written only by that worker */
+    static class Stripe {
+        long executed, steals;
+        final Histogram latency = new Histogram(), runTime = new Histogram();
+        final long [] pauses = new long[MAX_REASONS];
+    }
+
+    /** take a snapshot of the metrics for all workers */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /** a point in time copy of the metrics, with one entry per worker in each array */
+    public static class Snapshot {
+        /** the System.nanoTime at which the snapshot was taken */
+        public final long time;
+        /** the number of tasks published to each worker and not yet finished, or -1 if unknown */
+        public final int [] depth;
+        /** the number of runs by each worker */
+        public final long [] executed;
+        /** the number of tasks stolen by each worker, only for schedulers that steal */
+        public final long [] steals;
+        /** the time in nanoseconds from Task.resume to the start of Task.run */
+        public final Histogram [] latency;
+        /** the time in nanoseconds spent inside each run */
+        public final Histogram [] runTime;
+        final long [][] pauses;
+
+        Snapshot(SchedulerMetrics metrics) {
+            int num = metrics.stripes.length;
+            time = System.nanoTime();
+            depth = new int[num];
+            executed = new long[num];
+            steals = new long[num];
+            latency = new Histogram[num];
+            runTime = new Histogram[num];
+            pauses = new long[num][];
+            for (int ii=0; ii < num; ii++) {
+                Stripe stripe = metrics.stripes[ii];
+                depth[ii] = metrics.scheduler.queueDepth(ii);
+                executed[ii] = stripe.executed;
+                steals[ii] = stripe.steals;
+                latency[ii] = stripe.latency.copy();
+                runTime[ii] = stripe.runTime.copy();
+                pauses[ii] = stripe.pauses.clone();
+            }
+        }
+
+        /** the number of workers */
+        public int size() { return executed.length; }
+
+        /** the runs per second by a worker since an earlier snapshot */
+        public double rate(int worker,Snapshot previous) {
+            long delta = time - previous.time;
+            return delta <= 0 ? 0 : 1e9 * (executed[worker] - previous.executed[worker]) / delta;
+        }
+
+        /** the number of runs by a worker that ended with each class of PauseReason */
+        public Map<Class,Long> pauses(int worker) {
+            Map<Class,Long> map = new LinkedHashMap<Class,Long>();
+            long [] counts = pauses[worker];
+            for (int ii=0; ii < counts.length; ii++)
+                if (counts[ii] > 0 && reasons[ii] != null)
+                    map.put(reasons[ii],counts[ii]);
+            return map;
+        }
+    }
+
+    /**
+     * a fixed-bucket log-linear histogram, in the style of HdrHistogram, with 8 sub-buckets per power of two,
+     * ie values are recorded with a relative error of at most 12.5%. recording is a single increment
+     */
+    public static class Histogram {
+        static final int SUB_BITS = 3, SUB = 1 << SUB_BITS;
+        static final int NUM_BUCKETS = (64 - SUB_BITS + 1) * SUB;
+        final long [] counts;
+
+        public Histogram() { counts = new long[NUM_BUCKETS]; }
+        private Histogram(long [] counts) { this.counts = counts; }
+
+        static int bucket(long value) {
+            if (value < SUB)
+                return value < 0 ? 0 : (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        /** the smallest value that is recorded in the bucket */
+        static long lowerBound(int bucket) {
+            if (bucket < SUB)
+                return bucket;
+            int exp = bucket / SUB + SUB_BITS - 1;
+            return (long) (SUB + bucket % SUB) << (exp - SUB_BITS);
+        }
+
+        /** record a value, negative values are recorded as zero */
+        public void record(long value) {
+            counts[bucket(value)]++;
+        }
+
+        public Histogram copy() {
+            return new Histogram(counts.clone());
+        }
+
+        /** add the counts from another histogram to this one */
+        public void add(Histogram other) {
+            for (int ii=0; ii < NUM_BUCKETS; ii++)
+                counts[ii] += other.counts[ii];
+        }
+
+        /** the number of recorded values */
+        public long count() {
+            long sum = 0;
+            for (long num : counts)
+                sum += num;
+            return sum;
+        }
+
+        /**
+         * the value at a percentile, ie the lower bound of the bucket that contains it
+         * @param percentile between 0 and 100
+         * @return the value, or 0 if nothing has been recorded
+         */
+        public long percentile(double percentile) {
+            long total = count();
+            if (total==0) return 0;
+            long target = Math.max(1,(long) Math.ceil(total * percentile / 100));
+            long sum = 0;
+            for (int ii=0; ii < NUM_BUCKETS; ii++)
+                if ((sum += counts[ii]) >= target)
+                    return lowerBound(ii);
+            return lowerBound(NUM_BUCKETS-1);
+        }
+
+        /** the largest recorded value, ie the lower bound of the highest non-empty bucket */
+        public long max() {
+            for (int ii=NUM_BUCKETS-1; ii >= 0; ii--)
+                if (counts[ii] > 0)
+                    return lowerBound(ii);
+            return 0;
+        }
+    }
+}
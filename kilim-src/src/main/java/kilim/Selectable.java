@@ -0,0 +1,12 @@
+package kilim;
+
+/**
+ * a source of messages that Selector can wait on, ie one that reports whether it holds a message and
+ * signals its consumer with a messageAvailable event when one arrives
+ * @see Selector
+ */
+public interface Selectable extends EventPublisher {
+    boolean hasMessage();
+    void addMsgAvailableListener(EventSubscriber msgSub);
+    void removeMsgAvailableListener(EventSubscriber msgSub);
+}
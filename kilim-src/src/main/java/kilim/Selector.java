@@ -0,0 +1,92 @@
+package kilim;
+
+/**
+ * waits for the first of a set of sources, eg a control and a data mailbox, to have a message.
+ * each task lazily creates a single selector and reuses it for all of its selects, so a select that
+ * pauses registers the same listener with each source rather than allocating one per round
+ */
+public final class Selector implements Releasable, EventSubscriber {
+    private final Task task;
+    /** the sources of the select in progress, null between selects */
+    private Selectable [] srcs;
+
+    Selector(Task task) {
+        this.task = task;
+    }
+
+    /**
+     * the index of the first source that has a message, pausing until one does. it is possible that
+     * because of race conditions, an earlier source in the list may also have received a message
+     */
+    public static int select(Selectable... srcs) throws Pausable {
+        return select(srcs, false, 0);
+    }
+
+    /**
+     * the index of the first source that has a message, pausing for at most timeoutMillis
+     * @return the index, or -1 if none had a message before the timeout
+     */
+    public static int select(long timeoutMillis,Selectable... srcs) throws Pausable {
+        return select(srcs, true, timeoutMillis);
+    }
+
+    private static int select(Selectable [] srcs,boolean timed,long timeoutMillis) throws Pausable {
+        Task t = Task.getCurrentTask();
+        Selector sel = t.selector;
+        if (sel == null)
+            sel = t.selector = new Selector(t);
+        sel.srcs = srcs;
+        long begin = System.currentTimeMillis();
+        long time = timeoutMillis;
+        int idx;
+        while ((idx = sel.first()) < 0 && (!timed || time > 0)) {
+            for (Selectable src : srcs)
+                src.addMsgAvailableListener(sel);
+            if (timed) {
+                t.timer.setTimer(time);
+                t.scheduler.scheduleTimer(t.timer);
+            }
+            Task.pause(sel);
+            if (timed) {
+                t.timer.cancel();
+                time = timeoutMillis - (System.currentTimeMillis() - begin);
+            }
+            sel.cancel();
+        }
+        sel.srcs = null;
+        return idx;
+    }
+
+    private int first() {
+        for (int ii = 0; ii < srcs.length; ii++)
+            if (srcs[ii].hasMessage())
+                return ii;
+        return -1;
+    }
+
+    /** unregister from all the sources */
+    private void cancel() {
+        for (Selectable src : srcs)
+            src.removeMsgAvailableListener(this);
+    }
+
+    // The pauseReason is true (there is valid reason to continue
+    // pausing) if none of the sources have any elements
+    public boolean isValid(Task t) {
+        return srcs != null && first() < 0 && !t.checkTimeout();
+    }
+
+    public void onEvent(EventPublisher ep, Event e) {
+        task.resume();
+    }
+
+    public void release(Task t) {
+        if (srcs != null)
+            cancel();
+        srcs = null;
+    }
+
+    public String toString() {
+        return "select on " + (srcs==null ? 0 : srcs.length) + " sources";
+    }
+}
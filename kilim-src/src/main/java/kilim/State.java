@@ -21,10 +21,16 @@ package kilim;
  * integers (its name is indicative of this aspect) and is used
  * as a canonical class to store any activation frame that needs
  * to store two objects and three ints.
- *  
+ * <p>
+ * States are serializable, so that a paused fiber can be checkpointed
+ * (see Task.checkpoint and Continuation.checkpoint). The generated classes
+ * intentionally use the default serialVersionUID, which is computed from
+ * the class's members, so a checkpoint can only be restored by the same
+ * woven class set rather than into a differently shaped frame.
  */
 
-public class State {
+public class State implements java.io.Serializable {
+    private static final long serialVersionUID = 1L;
     public int pc;
     public Object self;
 }
@@ -0,0 +1,282 @@
+package kilim;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import kilim.timerservice.Timer;
+import kilim.timerservice.TimerService;
+import kilim.timerservice.TimerService.WatchdogContext;
+import kilim.timerservice.TimerService.WatchdogTask;
+
+/**
+ * a work-stealing variant of AffineScheduler
+ * each worker owns a lock-free deque and runs its own tasks first, and when it runs dry it steals from the
+ * tail of a sibling's deque, so a burst that lands on one worker is spread across the idle ones
+ *
+ * tasks that are pinned to a worker, ie preferredResumeThread is set because of kilim.ReentrantLock,
+ * are placed in a separate per-worker inbox that is never stolen from, so pinning works as in AffineScheduler
+ */
+public class StealingScheduler extends Scheduler implements WatchdogContext {
+    protected Worker [] workers;
+    protected AtomicInteger index = new AtomicInteger(-1);
+    protected AtomicInteger count = new AtomicInteger(0);
+    protected AtomicInteger sleepers = new AtomicInteger(0);
+    protected TimerService timerService;
+    /** the number of empty scans that a worker makes before parking */
+    static int spins = 64;
+
+    /**
+     * create the scheduler and start the worker threads
+     * @param numThreads the number of threads to use, or use the default if less than one
+     */
+    public StealingScheduler(int numThreads) {
+        if (numThreads <= 0)
+            numThreads = defaultNumberThreads;
+        workers = new Worker[numThreads];
+        for (int ii=0; ii < numThreads; ii++)
+            workers[ii] = new Worker(ii);
+        timerService = new TimerService(this);
+        for (Worker worker : workers)
+            worker.thread.start();
+    }
+
+    public void schedule(int index,Task t) {
+        publish(index,t);
+    }
+
+    public void scheduleTimer(Timer t) {
+        timerService.submit(t);
+    }
+
+    public int numThreads() { return workers.length; }
+
+    public synchronized SchedulerMetrics enableMetrics() {
+        if (metrics==null)
+            metrics = new SchedulerMetrics(this,workers.length);
+        return metrics;
+    }
+
+    /** the size of the worker's deque and inbox, which is linear in the number of tasks */
+    public int queueDepth(int worker) {
+        return workers[worker].deque.size() + workers[worker].pinned.size();
+    }
+
+    protected int next() {
+        int value = 0, newValue = 0;
+        do {
+            value = index.get();
+            newValue = (value==workers.length-1) ? 0:value+1;
+        } while (!index.compareAndSet(value,newValue));
+        return newValue;
+    }
+
+    /**
+     * the worker that the calling thread belongs to, or null if it's not a worker of this scheduler
+     */
+    Worker current() {
+        Thread thread = Thread.currentThread();
+        for (Worker worker : workers)
+            if (worker.thread==thread) return worker;
+        return null;
+    }
+
+    void publish(int index,Task task) {
+        count.incrementAndGet();
+        if (index >= 0 & task.preferredResumeThread==index) {
+            Worker worker = workers[index];
+            worker.pinned.offer(task);
+            worker.signal();
+            return;
+        }
+        Worker worker = index >= 0 ? workers[index] : current();
+        if (worker==null)
+            worker = workers[next()];
+        worker.deque.offerLast(task);
+        if (! worker.signal())
+            wakeThief(worker);
+    }
+
+    /**
+     * pinned tasks go to their worker's inbox and the rest are dealt out across the deques,
+     * signaling each worker that receives a task once
+     */
+    public void scheduleAll(Task [] tasks,int num) {
+        if (num==0) return;
+        count.addAndGet(num);
+        int [] touched = scratch(workers.length).ints;
+        Arrays.fill(touched,0,workers.length,0);
+        int start = next(), dealt = 0;
+        for (int ii=0; ii < num; ii++) {
+            Task task = tasks[ii];
+            int target = task.preferredResumeThread;
+            if (target >= 0)
+                workers[target].pinned.offer(task);
+            else {
+                target = (start + dealt++) % workers.length;
+                workers[target].deque.offerLast(task);
+            }
+            touched[target] = 1;
+        }
+        for (int jj=0; jj < workers.length; jj++)
+            if (touched[jj] != 0)
+                workers[jj].signal();
+    }
+
+    /** the target worker is busy, so wake a parked sibling (if any) to steal the task */
+    void wakeThief(Worker busy) {
+        if (sleepers.get()==0) return;
+        for (Worker worker : workers)
+            if (worker != busy && worker.signal())
+                return;
+    }
+
+    public void publish(WatchdogTask dog) {
+        count.incrementAndGet();
+        Worker worker = workers[0];
+        worker.deque.offerLast(dog);
+        worker.signal();
+    }
+
+    public boolean isEmpty() {
+        return count.get()==0;
+    }
+
+    public boolean isEmptyish() {
+        for (Worker worker : workers)
+            if (!worker.deque.isEmpty() || !worker.pinned.isEmpty()) return false;
+        return true;
+    }
+
+    public void idledown() {
+        waitIdle(100);
+    }
+
+    /*
+     wait till there are no pending timers
+     no running tasks
+     no tasks waiting to be run
+
+     rechecks each time the count drops to zero, and every delay milliseconds in case a timer is cancelled
+     from outside the scheduler
+     */
+    public boolean waitIdle(int delay) {
+        while (!Thread.interrupted()) {
+            int gen = quiescence.generation();
+            // checking the timers can fire them, so recheck the count
+            if (count.get()==0 && timerService.isEmpty() && count.get()==0)
+                return true;
+            if (! quiescence.await(gen,delay)) break;
+        }
+        return false;
+    }
+
+    public void shutdown() {
+        super.shutdown();
+        for (Worker worker : workers)
+            LockSupport.unpark(worker.thread);
+        timerService.shutdown();
+    }
+
+    protected class Worker implements Runnable {
+        final int id;
+        final Thread thread;
+        final ConcurrentLinkedDeque<Runnable> deque = new ConcurrentLinkedDeque<Runnable>();
+        final ConcurrentLinkedQueue<Task> pinned = new ConcurrentLinkedQueue<Task>();
+        volatile boolean parked;
+        private boolean flip;
+
+        Worker(int id) {
+            this.id = id;
+            thread = TimerService.factory.newThread(this);
+        }
+
+        /** unpark the worker if it's parked, returning true if it was */
+        boolean signal() {
+            if (!parked) return false;
+            LockSupport.unpark(thread);
+            return true;
+        }
+
+        /**
+         * poll for a runnable, alternating between the pinned inbox and the deque so that a pinned task that
+         * yields repeatedly can't starve the rest of the queue, and stealing only once both are empty
+         */
+        Runnable poll() {
+            Runnable task;
+            flip = !flip;
+            if (flip) {
+                if ((task = pinned.poll()) != null) return task;
+                if ((task = deque.pollFirst()) != null) return task;
+            }
+            else {
+                if ((task = deque.pollFirst()) != null) return task;
+                if ((task = pinned.poll()) != null) return task;
+            }
+            return steal();
+        }
+
+        Runnable steal() {
+            int num = workers.length;
+            for (int ii=1; ii < num; ii++) {
+                Worker victim = workers[(id+ii)%num];
+                Runnable task = victim.deque.pollLast();
+                if (task != null) {
+                    SchedulerMetrics stats = metrics;
+                    if (stats != null)
+                        stats.steal(id);
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        void execute(Runnable runnable) {
+            if (runnable instanceof Task)
+                ((Task) runnable).setTid(id);
+            SchedulerMetrics stats = metrics;
+            long start = stats==null ? 0 : System.nanoTime();
+            try {
+                runnable.run();
+            }
+            catch (Throwable ex) { log(this,ex); }
+            if (stats != null)
+                stats.record(id,runnable,start,System.nanoTime());
+            timerService.trigger(StealingScheduler.this);
+            if (count.decrementAndGet()==0)
+                quiescence.signal();
+        }
+
+        public void run() {
+            int idle = 0;
+            while (!shutdown.get()) {
+                Runnable task = poll();
+                if (task != null) {
+                    idle = 0;
+                    execute(task);
+                }
+                else if (++idle < spins)
+                    Thread.yield();
+                else {
+                    idle = 0;
+                    park();
+                }
+            }
+        }
+
+        // announce the intention to park before the final scan, so that a concurrent publish either
+        // sees the flag and unparks us or its task is visible to the scan
+        void park() {
+            parked = true;
+            sleepers.incrementAndGet();
+            Runnable task = poll();
+            if (task==null && !shutdown.get())
+                LockSupport.park(this);
+            sleepers.decrementAndGet();
+            parked = false;
+            if (task != null)
+                execute(task);
+        }
+    }
+}
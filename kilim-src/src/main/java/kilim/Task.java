@@ -6,11 +6,14 @@
 
 package kilim;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A base class for tasks. A task is a lightweight thread (it contains its own
@@ -20,15 +23,21 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worker {
     static PauseReason                   yieldReason           = new YieldReason();
+    static PauseReason                   timerReason           = new TimerReason();
     /**
-     * Task id, automatically generated
+     * Task id, automatically generated. ids are 64 bit and never reused, ie even a process
+     * spawning a billion tasks a second would take centuries to wrap
      */
-    public final int                     id;
-    static final AtomicInteger           idSource              = new AtomicInteger();
+    public final long                    id;
+    static final AtomicLong              idSource              = new AtomicLong();
+    /** the number of ids claimed from idSource at a time by each thread */
+    static final int                     ID_BLOCK              = 1024;
 
     /**
      * The stack manager in charge of rewinding and unwinding the stack when
-     * Task.pause() is called.
+     * Task.pause() is called. Once the task has finished, the fiber may be
+     * reset and returned to a pool for reuse by other tasks, and this field is
+     * then null (see fiberPoolSize).
      */
     protected Fiber                      fiber;
 
@@ -48,6 +57,16 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
      */
     protected AtomicBoolean              running               = new AtomicBoolean(false);
     protected volatile boolean           done                  = false;
+    /** set by cancel, checked when the task resumes from a pause */
+    volatile boolean                     cancelled;
+    /** the timer that cancels the task at its deadline, null until a deadline is set */
+    private kilim.timerservice.Timer     deadline;
+
+    /** the scope that forked this task, and the next older child of that scope */
+    TaskScope                            scope;
+    Task                                 sibling;
+    /** the position of this task among the children of its scope to finish, set when it finishes */
+    int                                  finishOrder;
 
     /**
      * The thread in which to resume this task. Ideally, we shouldn't have any
@@ -59,14 +78,26 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
     volatile int                         preferredResumeThread = -1;
 
     private int                          tid;
+    /**
+     * the priority class, ie the run queue used by a scheduler with more than one
+     * @see #setPriority(int)
+     */
+    volatile int                         priority              = PRIORITY_NORMAL;
+    /** the System.nanoTime of the last resume, set only if the scheduler has metrics enabled */
+    long                                 resumedAt;
+    /** the number of loop back-edges and the time of the first quantum check in the current run */
+    private int                          preemptCount;
+    private long                         preemptStart;
     /**
      * @see Task#preferredResumeThread
      */
     int                                  numActivePins;
 
     /**
+     * the first exit mailbox, and any others after it
      * @see #informOnExit(Mailbox)
      */
+    private Mailbox<ExitMsg<TT>>         exitMB;
     private LinkedList<Mailbox<ExitMsg<TT>>> exitMBs;
 
     /**
@@ -80,18 +111,70 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
 
     // new timer service
     public kilim.timerservice.Timer       timer;
+    /** the listener reused by every select of this task, null until its first select */
+    Selector                             selector;
     
     // for debugging Task.resume race conditions
     private static boolean debugRunning = false;
 
+    /**
+     * the maximum number of finished fibers kept by each thread for reuse by new tasks, zero to disable.
+     * a fiber is released when its task finishes, so tasks that are spawned and finish on the same threads,
+     * eg a fan-out with Task.fork, allocate a fiber only until the pool is primed
+     */
+    public static int fiberPoolSize = Integer.getInteger("kilim.fiber.pool",16);
+
+    /** the per-thread block of ids and pool of fibers */
+    private static final class Local {
+        long nextId, lastId = -1;
+        Fiber [] fibers;
+        int numFibers;
+    }
+    private static final ThreadLocal<Local> local = new ThreadLocal<Local>() {
+        protected Local initialValue() { return new Local(); }
+    };
+
+    /** the next id from the block claimed by the current thread, without contending on idSource */
+    static long nextId(Local loc) {
+        if (loc.nextId > loc.lastId) {
+            loc.nextId = idSource.getAndAdd(ID_BLOCK) + 1;
+            loc.lastId = loc.nextId + ID_BLOCK - 1;
+        }
+        return loc.nextId++;
+    }
+
     public Task() {
-        id = idSource.incrementAndGet();
-        fiber = new Fiber(this);
+        Local loc = local.get();
+        id = nextId(loc);
+        Fiber f = null;
+        if (loc.numFibers > 0) {
+            f = loc.fibers[--loc.numFibers];
+            loc.fibers[loc.numFibers] = null;
+            f.task = this;
+        }
+        fiber = f==null ? new Fiber(this) : f;
         timer = new kilim.timerservice.Timer(this);
     }
-    Task(boolean dummy) { id = idSource.incrementAndGet(); }
+    Task(boolean dummy) { id = nextId(local.get()); }
 
-    public int id() {
+    /** reset the fiber of a finished task and return it to the pool of the current thread */
+    private void releaseFiber() {
+        int max = fiberPoolSize;
+        Fiber f = fiber;
+        if (max <= 0 | f==null)
+            return;
+        Local loc = local.get();
+        if (loc.fibers==null)
+            loc.fibers = new Fiber[max];
+        if (loc.numFibers >= loc.fibers.length)
+            return;
+        fiber = null;
+        f.reset();
+        f.task = null;
+        loc.fibers[loc.numFibers++] = f;
+    }
+
+    public long id() {
         return id;
     }
 
@@ -108,6 +191,28 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
         return scheduler;
     }
 
+    /**
+     * the priority classes, lower values run first. schedulers that don't support priorities ignore them
+     * @see AffineScheduler#AffineScheduler(int,int,int[])
+     */
+    public static final int PRIORITY_HIGH = 0, PRIORITY_NORMAL = 1, PRIORITY_LOW = 2;
+
+    /**
+     * set the priority class, taking effect the next time the task is scheduled.
+     * a scheduler with fewer classes treats the higher values as its lowest class
+     * @param priority a non-negative class, eg PRIORITY_HIGH
+     */
+    public Task<TT> setPriority(int priority) {
+        if (priority < 0)
+            throw new IllegalArgumentException("priority must be non-negative: " + priority);
+        this.priority = priority;
+        return this;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
     public void resumeOnScheduler(Scheduler s) throws Pausable {
         if (scheduler == s)
             return;
@@ -126,6 +231,8 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
         if (scheduler == null) {
             setScheduler(Scheduler.getDefaultScheduler());
         }
+        if (deadline != null && deadline.getExecutionTime() > 0)
+            scheduler.scheduleTimer(deadline);
         resume();
         return this;
     }
@@ -235,6 +342,10 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
 
 
         if (doSchedule) {
+            if (scheduler.metrics != null)
+                resumedAt = System.nanoTime();
+            if (Scheduler.defer(this))
+                return true;
             if (preferredResumeThread == -1)
                 scheduler.schedule(this);
             else
@@ -248,6 +359,10 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
             exit.putnb(new ExitMsg(this, exitResult));
             return;
         }
+        if (exitMB == null) {
+            exitMB = exit;
+            return;
+        }
         if (exitMBs == null) {
             exitMBs = new LinkedList();
         }
@@ -290,6 +405,29 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
         f.togglePause();
     }
 
+    /** the number of loop back-edges between checks of the clock by code woven with preemption */
+    public static int preemptChecks = Integer.getInteger("kilim.preempt.checks",1024);
+    /** the time a run may loop before code woven with preemption yields, zero to yield at every check */
+    public static long preemptNanos = 1000L * Long.getLong("kilim.preempt.micros",1000);
+
+    /**
+     * called at loop back-edges by code woven with preemption (see kilim.tools.Weaver -p), not for direct use.
+     * counts the back-edges, and every preemptChecks of them compares the time since the first check
+     * in the current run against preemptNanos
+     * @return true if the task should yield
+     */
+    public boolean overBudget() {
+        if (++preemptCount < preemptChecks)
+            return false;
+        preemptCount = 0;
+        long now = System.nanoTime();
+        if (preemptStart==0) {
+            preemptStart = now;
+            return preemptNanos <= 0;
+        }
+        return now - preemptStart >= preemptNanos;
+    }
+
     public static void errNotWoven() {
         System.err.println("############################################################");
         System.err.println("Task has either not been woven or the classpath is incorrect");
@@ -308,6 +446,7 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
     }
 
     static class ArgState extends kilim.State {
+        private static final long serialVersionUID = 1L;
         Object   mthd;
         Object   obj;
         Object[] fargs;
@@ -410,19 +549,20 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
     /**
      * @param millis
      * to sleep. Like thread.sleep, except it doesn't throw an interrupt, and it
-     * doesn't hog the java thread.
+     * doesn't hog the java thread. the task waits on its own timer, so nothing is allocated
      */
     public static void sleep(final long millis) throws Pausable {
-        // create a temp mailbox, and wait on it.
-        final Mailbox<Integer> sleepmb = new Mailbox<Integer>(1); // TODO: will
-        // need a
-        // better
-        // mechanism
-        // for
-        // monitoring
-        // later on.
-        
-        sleepmb.get(millis);
+        Task t = getCurrentTask();
+        long end = System.currentTimeMillis() + millis;
+        long time = millis;
+        // any other resume is spurious, so wait out the remainder
+        do {
+            t.timer.setTimer(time);
+            t.scheduler.scheduleTimer(t.timer);
+            pause(timerReason);
+            t.timer.cancel();
+            time = end - System.currentTimeMillis();
+        } while (time > 0);
     }
 
     public static void shutdown() {
@@ -463,11 +603,20 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
             f.task.setPauseReason(pauseReason);
         } else {
             f.task.setPauseReason(null);
+            if (f.task.cancelled)
+                f.task.release(pauseReason);
         }
         f.togglePause();
         f.task.checkKill();
     }
 
+    /** let go of the registrations of a cancelled task, which unwinds without returning to the code that made them */
+    void release(PauseReason pr) {
+        timer.cancel();
+        if (pr instanceof Releasable)
+            ((Releasable) pr).release(this);
+    }
+
     /*
      * This is the fiber counterpart to the execute() method that allows us to
      * detec when a subclass has not been woven.
@@ -543,22 +692,32 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
         Scheduler.setCurrentTask(this);
         Fiber f = fiber;
         boolean isDone = false;
+        preemptCount = 0;
+        preemptStart = 0;
         try {
             assert (preferredResumeThread == -1 || preferredResumeThread == tid) : "Resumed "
                     + id + " in incorrect thread. ";
+            // a task that is cancelled before it first runs doesn't run at all.
+            // the reason is only null until the first pause, since a resumed pause clears it and then pauses again or exits
+            if (cancelled & pauseReason == null)
+                throw new CancelledException("task " + id + " cancelled");
             // start execute. fiber is wound to the beginning.
             execute(f.begin());
 
             // execute() done. Check fiber if it is pausing and reset it.
             isDone = f.end() || (pauseReason instanceof TaskDoneReason);
         } catch (Throwable th) {
-            getScheduler().log(this,th);
+            if (!(th instanceof CancelledException))
+                getScheduler().log(this,th);
             // Definitely done
             setPauseReason(new TaskDoneReason(th));
             isDone = true;
         }
 
+        SchedulerMetrics stats = scheduler.metrics;
         if (isDone) {
+            if (stats != null)
+                stats.pause(tid,TaskDoneReason.class);
             // inform on exit
             if (numActivePins > 0) {
                 throw new AssertionError("Task ended but has active locks");
@@ -569,13 +728,21 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
             preferredResumeThread = -1;
             synchronized(this){
                 done = true;
-                if (exitMBs != null) {
-                    ExitMsg msg = new ExitMsg(this, exitResult);
-                    for (Mailbox<ExitMsg<TT>> exitMB: exitMBs) {
-                        exitMB.putnb(msg);
-                    }
+                if (exitMB != null) {
+                    @SuppressWarnings("unchecked")
+                    ExitMsg<TT> msg = new ExitMsg<TT>(this, (TT) exitResult);
+                    exitMB.putnb(msg);
+                    if (exitMBs != null)
+                        for (Mailbox<ExitMsg<TT>> mb: exitMBs) {
+                            mb.putnb(msg);
+                        }
                 }
             }
+            if (deadline != null)
+                deadline.cancel();
+            if (scope != null)
+                scope.exited(this,exitResult);
+            releaseFiber();
         } else {
             if (tid >= 0) { // it is null for generators
                 if (numActivePins > 0) {
@@ -588,13 +755,16 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
             }
 
             PauseReason pr = this.pauseReason;
+            // recorded before running is cleared, since the task may then be resumed and run by another thread
+            if (stats != null)
+                stats.pause(tid,pr.getClass());
             running.set(false);
             // The task has been in "running" mode until now, and may have
             // missed
             // notifications to the pauseReason object (that is, it would have
             // resisted calls to resume(). If the pauseReason is not valid any
-            // more, we'll resume.
-            if (!pr.isValid(this)) {
+            // more, or the task was cancelled meanwhile, we'll resume.
+            if (cancelled || !pr.isValid(this)) {
                 // NOTE: At this point, another event could trigger resumption
                 // before the following resume() can kick in. Additionally,
                 // it is possible that the task could process all pending
@@ -624,10 +794,97 @@ public abstract class Task<TT> implements Runnable, EventSubscriber, Fiber.Worke
 
     @Override
     public int hashCode() {
-        return id;
+        return (int) (id ^ id >>> 32);
     }
 
+    /**
+     * called after the task resumes from a pause
+     * @throws CancelledException if the task has been cancelled
+     */
     public void checkKill() {
+        if (cancelled)
+            throw new CancelledException("task " + id + (expired() ? " passed its deadline" : " cancelled"));
+    }
+
+    /**
+     * cancel the task. the task is resumed, regardless of its pause reason, and a CancelledException is
+     * thrown from the pause, ie the task is free to catch it and clean up. a task that hasn't started
+     * doesn't run, and one that doesn't pause again runs to completion. the registrations of the pause,
+     * ie its timer and any listener on a Releasable reason such as a Mailbox or Cell, are dropped
+     */
+    public void cancel() {
+        cancelled = true;
+        resume();
+    }
+
+    /**
+     * set a deadline, after which the task is cancelled (see cancel), replacing any earlier deadline
+     * @param millis the time from now, or zero to clear the deadline
+     */
+    public Task<TT> setDeadline(long millis) {
+        kilim.timerservice.Timer timer;
+        synchronized (this) {
+            if (deadline==null)
+                deadline = new kilim.timerservice.Timer(new Deadline(this));
+            timer = deadline;
+        }
+        if (millis==0) {
+            timer.cancel();
+            return this;
+        }
+        timer.setTimer(millis);
+        Scheduler s = scheduler;
+        // otherwise start() schedules it
+        if (s != null)
+            s.scheduleTimer(timer);
+        return this;
+    }
+
+    /** whether the deadline has passed, ie the deadline timer has fired */
+    boolean expired() {
+        kilim.timerservice.Timer timer = deadline;
+        return timer != null && timer.getExecutionTime()==-2;
+    }
+
+    /** the subscriber of the deadline timer, kept apart from the task since the task's own timer serves the timed pauses */
+    private static class Deadline implements EventSubscriber {
+        final Task task;
+        Deadline(Task task) { this.task = task; }
+        public void onEvent(EventPublisher ep, Event e) {
+            task.deadline.setLiteral(-2);
+            task.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * write a checkpoint of a paused task, ie the task and the saved frames of its fiber, from which
+     * restore() creates a task that resumes from the same pause. the task class must be Serializable, as
+     * must everything the frames reference, eg the pause reason of a Mailbox.get can't be checkpointed.
+     * Task itself is not Serializable, so its fields, ie the id, scheduler, exit mailboxes and deadline, are
+     * not saved and the restored task starts out with fresh ones (see Serializable for the rules)
+     */
+    public void checkpoint(ObjectOutput out) throws IOException {
+        if (running.get() | done)
+            throw new IllegalStateException("task " + id + " must be paused to checkpoint");
+        out.writeObject(this);
+        out.writeObject(fiber);
+    }
+
+    /**
+     * read a task written by checkpoint, using the same woven classes. the pause is not restored,
+     * so once started the task resumes at once and the code that paused re-checks its condition,
+     * eg sleep waits out whatever remains of the time
+     */
+    public static Task restore(ObjectInput in) throws IOException, ClassNotFoundException {
+        Task t = (Task) in.readObject();
+        Fiber f = (Fiber) in.readObject();
+        f.task = t;
+        t.fiber = f;
+        return t;
     }
 
     public boolean getState() {
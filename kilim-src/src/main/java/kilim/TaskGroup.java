@@ -7,6 +7,10 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 
+/**
+ * a task that waits for the tasks added to it and exits with their exit messages.
+ * for fork/join with cancellation and deadlines, and for large fan-outs, see TaskScope
+ */
 public class TaskGroup extends Task {
     private Mailbox<Task> addedTasksMB = new Mailbox<Task>();
     private Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
@@ -0,0 +1,225 @@
+package kilim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * a structured concurrency scope. children are forked into the scope and a join returns only once every
+ * child has finished, ie no child outlives the join. the failure of a child cancels its siblings
+ * (see Task.cancel), as does a deadline that expires during a join and a join that needs only the first
+ * few results. once cancelled, the scope cancels any child forked later
+ *
+ * the children are linked through a field of the task rather than held in a collection, and counted with
+ * an atomic int, so a fork is a push and an increment, and the joining task is woken once, by the child that
+ * completes the join, rather than once per child. a join must be called from a task, one join at a time
+ * @see TaskGroup
+ */
+public class TaskScope<TT> implements PauseReason {
+    private static final AtomicReferenceFieldUpdater<TaskScope,Task> headUpdater
+            = AtomicReferenceFieldUpdater.newUpdater(TaskScope.class,Task.class,"head");
+    private static final AtomicReferenceFieldUpdater<TaskScope,Throwable> failureUpdater
+            = AtomicReferenceFieldUpdater.newUpdater(TaskScope.class,Throwable.class,"failure");
+    private static final AtomicIntegerFieldUpdater<TaskScope> pendingUpdater
+            = AtomicIntegerFieldUpdater.newUpdater(TaskScope.class,"pending");
+    private static final AtomicIntegerFieldUpdater<TaskScope> finishedUpdater
+            = AtomicIntegerFieldUpdater.newUpdater(TaskScope.class,"finished");
+    private static final AtomicIntegerFieldUpdater<TaskScope> succeededUpdater
+            = AtomicIntegerFieldUpdater.newUpdater(TaskScope.class,"succeeded");
+
+    /** the most recently forked child, linked to the older ones by Task.sibling */
+    private volatile Task head;
+    /** the number of children that are forked and not finished, that have finished, and that succeeded */
+    private volatile int pending, finished, succeeded;
+    private volatile Throwable failure;
+    private volatile boolean cancelled;
+    /** the task waiting in a join, if any */
+    private volatile Task joiner;
+    /** the number of successes that satisfies the current join, or 0 to wait for every child */
+    private volatile int wanted;
+    /** the System.currentTimeMillis by which a join cancels the remaining children, or 0 for none */
+    private volatile long deadline;
+    private volatile boolean cancelOnFailure = true;
+    private final Scheduler scheduler;
+
+    /** a scope whose children run on the scheduler that they're set to, or the default */
+    public TaskScope() { this(null); }
+
+    /** a scope whose children run on the given scheduler */
+    public TaskScope(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * add the task to the scope and start it
+     * @param child a task that has not been started
+     * @return the task
+     */
+    public <T extends Task<TT>> T fork(T child) {
+        if (child.scope != null)
+            throw new IllegalStateException("task " + child.id + " already belongs to a scope");
+        child.scope = this;
+        pendingUpdater.incrementAndGet(this);
+        Task old;
+        do {
+            old = head;
+            child.sibling = old;
+        } while (!headUpdater.compareAndSet(this,old,child));
+        if (scheduler != null)
+            child.setScheduler(scheduler);
+        child.start();
+        // a cancel that raced with the push may not have seen the child
+        if (cancelled)
+            child.cancel();
+        return child;
+    }
+
+    /** wrap the body in a task, add it to the scope and start it */
+    public Task.Spawn<TT> fork(Pausable.Spawn<TT> body) {
+        return fork(new Task.Spawn<TT>(body));
+    }
+
+    /**
+     * set a deadline for the scope. a join that is still waiting when it expires cancels the remaining
+     * children, and then waits for them to finish
+     * @param millis the time from now, or zero to clear the deadline
+     */
+    public TaskScope<TT> setDeadline(long millis) {
+        deadline = millis==0 ? 0 : System.currentTimeMillis() + millis;
+        return this;
+    }
+
+    /** whether the failure of a child cancels its siblings, true by default */
+    public TaskScope<TT> setCancelOnFailure(boolean cancel) {
+        cancelOnFailure = cancel;
+        return this;
+    }
+
+    /** cancel every child that hasn't finished, and any that are forked later */
+    public void cancel() {
+        cancelled = true;
+        for (Task child = head; child != null; child = child.sibling)
+            if (!child.done)
+                child.cancel();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** the first exception with which a child failed, not counting cancellations, or null */
+    public Throwable failure() {
+        return failure;
+    }
+
+    /** the children in the order in which they were forked */
+    @SuppressWarnings("unchecked") // fork only accepts a Task<TT>, but the sibling links are untyped
+    public List<Task<TT>> children() {
+        ArrayList<Task<TT>> list = new ArrayList<Task<TT>>();
+        for (Task<?> child = head; child != null; child = child.sibling)
+            list.add((Task<TT>) child);
+        Collections.reverse(list);
+        return list;
+    }
+
+    /** the exit message of a finished child, whose result is a Throwable if it failed, as for informOnExit */
+    @SuppressWarnings("unchecked")
+    private static <TT> ExitMsg<TT> exitMsg(Task<TT> child) {
+        return new ExitMsg<TT>(child,(TT) child.exitResult);
+    }
+
+    /**
+     * wait for every child to finish
+     * @return the exit messages of the children, in the order in which they were forked
+     */
+    public List<ExitMsg<TT>> joinAll() throws Pausable {
+        await(0);
+        List<ExitMsg<TT>> msgs = new ArrayList<ExitMsg<TT>>();
+        for (Task<TT> child : children())
+            msgs.add(exitMsg(child));
+        return msgs;
+    }
+
+    /**
+     * wait for num children to succeed, or for all of them to finish if fewer do, then cancel the rest
+     * and wait for them to finish
+     * @return the exit messages of at most num children that succeeded, in the order in which they finished
+     */
+    public List<ExitMsg<TT>> joinFirst(int num) throws Pausable {
+        await(num);
+        cancel();
+        await(0);
+        List<Task<TT>> done = new ArrayList<Task<TT>>();
+        for (Task<TT> child : children())
+            if (!(child.exitResult instanceof Throwable))
+                done.add(child);
+        Collections.sort(done,byFinish);
+        List<ExitMsg<TT>> msgs = new ArrayList<ExitMsg<TT>>();
+        for (int ii=0; ii < done.size() && ii < num; ii++)
+            msgs.add(exitMsg(done.get(ii)));
+        return msgs;
+    }
+
+    private static final Comparator<Task<?>> byFinish = new Comparator<Task<?>>() {
+        public int compare(Task<?> t1,Task<?> t2) {
+            return Integer.compare(t1.finishOrder,t2.finishOrder);
+        }
+    };
+
+    private boolean ready(int want) {
+        return pending==0 || want > 0 && succeeded >= want;
+    }
+
+    public boolean isValid(Task t) {
+        return !ready(wanted);
+    }
+
+    private void await(int want) throws Pausable {
+        Task t = Task.getCurrentTask();
+        wanted = want;
+        joiner = t;
+        try {
+            while (!ready(want)) {
+                long end = deadline, left = 0;
+                if (end != 0 & !cancelled) {
+                    left = end - System.currentTimeMillis();
+                    if (left <= 0) {
+                        cancel();
+                        continue;
+                    }
+                    t.timer.setTimer(left);
+                    t.scheduler.scheduleTimer(t.timer);
+                }
+                Task.pause(this);
+                if (left > 0)
+                    t.timer.cancel();
+            }
+        }
+        catch (CancelledException ex) {
+            // the joining task was cancelled, so the children can't be waited for. cancel them instead
+            cancel();
+            throw ex;
+        }
+        finally {
+            joiner = null;
+        }
+    }
+
+    /** called by a child when it finishes, with its exit result */
+    void exited(Task child,Object result) {
+        child.finishOrder = finishedUpdater.incrementAndGet(this);
+        if (!(result instanceof Throwable))
+            succeededUpdater.incrementAndGet(this);
+        else if (!(result instanceof CancelledException)
+                && failureUpdater.compareAndSet(this,null,(Throwable) result) && cancelOnFailure)
+            cancel();
+        pendingUpdater.decrementAndGet(this);
+        // the join publishes joiner before checking the counts, so one side or the other sees the change
+        Task t = joiner;
+        if (t != null && ready(wanted))
+            t.resume();
+    }
+}
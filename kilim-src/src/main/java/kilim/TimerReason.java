@@ -0,0 +1,19 @@
+/* Copyright (c) 2006, Sriram Srinivasan
+ *
+ * You may distribute this software under the terms of the license 
+ * specified in the file "License"
+ */
+
+package kilim;
+
+/** the reason for a task that is waiting only on its own timer, eg in sleep */
+public class TimerReason implements PauseReason {
+    public boolean isValid(Task t) {
+        // keep pausing until the timer fires
+        return !t.checkTimeout();
+    }
+    @Override
+    public String toString() {
+        return "timer";
+    }
+}
@@ -0,0 +1,210 @@
+package kilim;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import kilim.timerservice.Timer;
+import kilim.timerservice.TimerService;
+import kilim.timerservice.TimerService.WatchdogContext;
+import kilim.timerservice.TimerService.WatchdogTask;
+
+/**
+ * a scheduler that runs each task on a virtual thread (java 21 and later), falling back to a ForkJoinPool
+ * on older jvms.
+ * woven tasks pause and resume as with any other scheduler, ie a run lasts until the fiber pauses,
+ * but blocking calls made from inside a task (eg jdbc) block only the virtual thread and not the carrier
+ *
+ * each run is handed a lane, a small integer used as the tid. if the task is pinned when the run ends,
+ * eg it holds a kilim.ReentrantLock, the lane keeps its thread and blocks until the task is resumed,
+ * so the lock owner is unchanged. on virtual threads this blocks no carrier, and on the ForkJoinPool
+ * fallback the wait is a managedBlock so the pool compensates
+ */
+public class VirtualThreadScheduler extends Scheduler implements WatchdogContext {
+    protected ExecutorService executor;
+    protected final boolean virtual;
+    protected final int numThreads;
+    protected AtomicInteger count = new AtomicInteger(0);
+    protected TimerService timerService;
+    /** the lanes that are running a task or holding a pinned task, by id */
+    protected ConcurrentHashMap<Integer,Lane> lanes = new ConcurrentHashMap<Integer,Lane>();
+    private ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<Integer>();
+    private AtomicInteger nextLane = new AtomicInteger(0);
+
+    /** create the scheduler using the default number of threads for the fallback pool */
+    public VirtualThreadScheduler() {
+        this(0);
+    }
+
+    /**
+     * create the scheduler
+     * @param numThreads the parallelism of the ForkJoinPool used if virtual threads are not available,
+     *        or use the default if less than one
+     */
+    public VirtualThreadScheduler(int numThreads) {
+        if (numThreads <= 0)
+            numThreads = defaultNumberThreads;
+        this.numThreads = numThreads;
+        ExecutorService exe = newVirtualExecutor();
+        virtual = exe != null;
+        executor = virtual ? exe : new ForkJoinPool(numThreads);
+        timerService = new TimerService(this);
+    }
+
+    /** return a virtual thread per task executor if the jvm supports it, otherwise null */
+    static ExecutorService newVirtualExecutor() {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (Throwable ex) { return null; }
+    }
+
+    /** are tasks run on virtual threads, ie false if the ForkJoinPool fallback is in use */
+    public boolean isVirtual() { return virtual; }
+
+    public int numThreads() { return numThreads; }
+
+    public void schedule(int index,Task t) {
+        count.incrementAndGet();
+        Lane lane = index < 0 ? null : lanes.get(index);
+        if (lane != null && t.preferredResumeThread==index)
+            lane.handoff(t);
+        else
+            executor.execute(new Lane(t));
+    }
+
+    public void scheduleTimer(Timer t) {
+        timerService.submit(t);
+    }
+
+    public void publish(final WatchdogTask dog) {
+        count.incrementAndGet();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    dog.run();
+                }
+                catch (Throwable ex) { log(this,ex); }
+                finished();
+            }
+        });
+    }
+
+    public boolean isEmpty() {
+        return count.get()==0;
+    }
+
+    /** tasks are started as soon as they're scheduled, so only the scheduled count is available */
+    public boolean isEmptyish() {
+        return count.get()==0;
+    }
+
+    public void idledown() {
+        waitIdle(100);
+    }
+
+    /*
+     wait till there are no pending timers
+     no running tasks
+     no tasks waiting to be run
+
+     rechecks each time the count drops to zero, and every delay milliseconds in case a timer is cancelled
+     from outside the scheduler
+     */
+    public boolean waitIdle(int delay) {
+        while (!Thread.interrupted()) {
+            int gen = quiescence.generation();
+            // checking the timers can fire them, so recheck the count
+            if (count.get()==0 && timerService.isEmpty() && count.get()==0)
+                return true;
+            if (! quiescence.await(gen,delay)) break;
+        }
+        return false;
+    }
+
+    void finished() {
+        timerService.trigger(this);
+        if (count.decrementAndGet()==0)
+            quiescence.signal();
+    }
+
+    public void shutdown() {
+        super.shutdown();
+        for (Lane lane : lanes.values())
+            LockSupport.unpark(lane.thread);
+        executor.shutdown();
+        timerService.shutdown();
+    }
+
+    /**
+     * a thread that runs a task, and while the task remains pinned, waits for it to be resumed and runs it again
+     */
+    protected class Lane implements Runnable, ForkJoinPool.ManagedBlocker {
+        Task task;
+        int id;
+        volatile Thread thread;
+        volatile Task next;
+
+        Lane(Task task) { this.task = task; }
+
+        void handoff(Task task) {
+            next = task;
+            LockSupport.unpark(thread);
+        }
+
+        public boolean isReleasable() {
+            return next != null || shutdown.get();
+        }
+
+        public boolean block() {
+            if (! isReleasable())
+                LockSupport.park(this);
+            return isReleasable();
+        }
+
+        void execute(Task task) {
+            task.setTid(id);
+            try {
+                task.run();
+            }
+            catch (Throwable ex) { log(this,ex); }
+        }
+
+        // the lane is registered before the run, since the task may be resumed (and handed back to this lane)
+        // before run returns
+        public void run() {
+            Integer value = free.poll();
+            id = value==null ? nextLane.getAndIncrement() : value;
+            thread = Thread.currentThread();
+            lanes.put(id,this);
+            try {
+                while (true) {
+                    execute(task);
+                    boolean pinned = task.preferredResumeThread==id;
+                    finished();
+                    if (! pinned || ! await())
+                        break;
+                    task = next;
+                    next = null;
+                }
+            }
+            finally {
+                lanes.remove(id);
+                free.offer(id);
+            }
+        }
+
+        /** wait for the pinned task to be handed back, returning false if the scheduler is shut down first */
+        boolean await() {
+            try {
+                ForkJoinPool.managedBlock(this);
+            }
+            catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+            return next != null;
+        }
+    }
+}
@@ -15,6 +15,7 @@ import static kilim.Constants.D_BYTE;
 import static kilim.Constants.D_CHAR;
 import static kilim.Constants.D_DOUBLE;
 import static kilim.Constants.D_FIBER;
+import static kilim.Constants.D_FLAT_STATE;
 import static kilim.Constants.D_FLOAT;
 import static kilim.Constants.D_INT;
 import static kilim.Constants.D_LONG;
@@ -25,6 +26,7 @@ import static kilim.Constants.D_STATE;
 import static kilim.Constants.D_VOID;
 import static kilim.Constants.D_UNDEFINED;
 import static kilim.Constants.FIBER_CLASS;
+import static kilim.Constants.FLAT_STATE_CLASS;
 import static kilim.Constants.FLOAD_0;
 import static kilim.Constants.FSTORE_0;
 import static kilim.Constants.ILOAD_0;
@@ -37,6 +39,8 @@ import static kilim.analysis.VMType.loadVar;
 import static kilim.analysis.VMType.storeVar;
 import static kilim.analysis.VMType.toVmType;
 import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.AASTORE;
 import static org.objectweb.asm.Opcodes.ALOAD;
 import static org.objectweb.asm.Opcodes.ARETURN;
 import static org.objectweb.asm.Opcodes.ASTORE;
@@ -58,16 +62,23 @@ import static org.objectweb.asm.Opcodes.GETFIELD;
 import static org.objectweb.asm.Opcodes.GOTO;
 import static org.objectweb.asm.Opcodes.I2B;
 import static org.objectweb.asm.Opcodes.I2C;
+import static org.objectweb.asm.Opcodes.I2L;
 import static org.objectweb.asm.Opcodes.I2S;
 import static org.objectweb.asm.Opcodes.ICONST_0;
 import static org.objectweb.asm.Opcodes.ICONST_M1;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
 import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INSTANCEOF;
 import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
 import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
 import static org.objectweb.asm.Opcodes.IRETURN;
 import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.L2I;
+import static org.objectweb.asm.Opcodes.LALOAD;
+import static org.objectweb.asm.Opcodes.LASTORE;
 import static org.objectweb.asm.Opcodes.LCONST_0;
 import static org.objectweb.asm.Opcodes.LCONST_1;
 import static org.objectweb.asm.Opcodes.LLOAD;
@@ -178,6 +189,15 @@ public class CallWeaver {
     /** Memoized version of getNumArgs() */
     int                  numArgs = -1;
 
+    /**
+     * spill values into a FlatState's arrays rather than the fields of a generated state class,
+     * see KilimContext.flatStates
+     */
+    private boolean      flat;
+
+    /** the number of primitive and reference values saved, in flat mode */
+    private int          numPrims, numRefs;
+
     private Detector detector;
 
     public CallWeaver(MethodWeaver mw, Detector d, BasicBlock aBB) {
@@ -189,9 +209,11 @@ public class CallWeaver {
         resumeLabel = bb.flow.getLabelAt(bb.startPos + 1);
         if (resumeLabel == null)
             resumeLabel = new LabelNode();
+        flat = mw.getClassWeaver().context.flatStates;
         assignRegisters();
         stateClassName = createStateClass();
-        methodWeaver.ensureMaxStack(getNumBottom() + 3); // 
+        // flat mode stores need the array, the index and a double word value
+        methodWeaver.ensureMaxStack(getNumBottom() + (flat ? 5 : 3)); // 
     }
 
     /**
@@ -261,6 +283,7 @@ public class CallWeaver {
         int fieldNum = 0;
         for (ValInfo vi : valInfoList) {
             vi.fieldName = "f" + fieldNum++;
+            vi.slot = vi.vmt == TOBJECT ? numRefs++ : numPrims++;
         }
     }
 
@@ -558,11 +581,45 @@ public class CallWeaver {
          * pc, "the program counter" is merely the index of the call weaver in
          * the method weaver's list. This allows us to do a switch in the
          * method's entry.
+         *
+         * With KilimContext.reuseStates, the state last restored at this depth
+         * (fiber.reuse()) is used instead if it is an instance of the state class.
+         * Every field is written below, so nothing stale survives the save.
          */
-        mv.visitTypeInsn(NEW, stateClassName);
-        mv.visitInsn(DUP); // 
-        // call constructor
-        mv.visitMethodInsn(INVOKESPECIAL, stateClassName, "<init>", "()V", false);
+        boolean reuse = methodWeaver.getClassWeaver().context.reuseStates && !flat;
+        LabelNode reuseLabel = new LabelNode();
+        if (flat) {
+            // state = fiber.flat(numPrims, numRefs)
+            loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
+            pushInt(mv, numPrims);
+            pushInt(mv, numRefs);
+            mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "flat", "(II)" + D_FLAT_STATE, false);
+        }
+        else if (reuse) {
+            // state = fiber.reuse(), kept if it is an instance of the state class
+            loadVar(mv, TOBJECT, methodWeaver.getFiberVar());
+            mv.visitMethodInsn(INVOKEVIRTUAL, FIBER_CLASS, "reuse", "()" + D_STATE, false);
+            mv.visitInsn(DUP);
+            if (stateClassName.equals(STATE_CLASS)) {
+                mv.visitJumpInsn(IFNONNULL, reuseLabel.getLabel());
+            } else {
+                mv.visitTypeInsn(INSTANCEOF, stateClassName);
+                mv.visitJumpInsn(IFNE, reuseLabel.getLabel());
+            }
+            mv.visitInsn(POP);
+        }
+        if (!flat) {
+            mv.visitTypeInsn(NEW, stateClassName);
+            mv.visitInsn(DUP); // 
+            // call constructor
+            mv.visitMethodInsn(INVOKESPECIAL, stateClassName, "<init>", "()V", false);
+        }
+        if (reuse) {
+            reuseLabel.accept(mv);
+            if (!stateClassName.equals(STATE_CLASS)) {
+                mv.visitTypeInsn(CHECKCAST, stateClassName);
+            }
+        }
         // save state in register
         int stateVar = allocVar(1);
         storeVar(mv, TOBJECT, stateVar);
@@ -574,11 +631,7 @@ public class CallWeaver {
         }
         int pc = methodWeaver.getPC(this);
         loadVar(mv, TOBJECT, stateVar); // state.pc
-        if (pc < 6) {
-            mv.visitInsn(ICONST_0 + pc);
-        } else {
-            mv.visitIntInsn(BIPUSH, pc);
-        }
+        pushInt(mv, pc);
         mv.visitFieldInsn(PUTFIELD, STATE_CLASS, "pc", D_INT);
 
         // First save bottom stack into state
@@ -599,9 +652,7 @@ public class CallWeaver {
                  */
                 int var = allocVar(vi.val.category());
                 storeVar(mv, vi.vmt, var);
-                loadVar(mv, VMType.TOBJECT, stateVar);
-                loadVar(mv, vi.vmt, var);
-                mv.visitFieldInsn(PUTFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
+                genPutField(mv, stateVar, vi, var);
                 releaseVar(var, vi.val.category());
             }
         }
@@ -613,9 +664,7 @@ public class CallWeaver {
                 continue;
             // aload state var
             // xload <var>
-            loadVar(mv, TOBJECT, stateVar);
-            loadVar(mv, vi.vmt, vi.var);
-            mv.visitFieldInsn(PUTFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
+            genPutField(mv, stateVar, vi, vi.var);
         }
 
         // Fiber.setState(state);
@@ -701,8 +750,7 @@ public class CallWeaver {
             } else {
                 ValInfo vi = valInfoList.find(v);
                 if (vi.var == -1) {
-                    loadVar(mv, TOBJECT, stateVar);
-                    mv.visitFieldInsn(GETFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
+                    genGetField(mv, stateVar, vi);
                     checkcast(mv, v);
                 } else {
                     // this stack value is a duplicate of a local var, which has
@@ -769,8 +817,7 @@ public class CallWeaver {
                 ValInfo vi = valInfoList.find(v);
                 if (vi.var == i) {
                     // load val from state
-                    loadVar(mv, TOBJECT, stateVar);
-                    mv.visitFieldInsn(GETFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
+                    genGetField(mv, stateVar, vi);
                     checkcast(mv, v); // don't need to do this in the constant case
                 } else {
                     // It is a duplicate of another var. No need to load this var from stack
@@ -785,6 +832,73 @@ public class CallWeaver {
         releaseVar(stateVar, 1);
     }
 
+    /**
+     * state.field = var, or in flat mode state.prims[slot] = bits(var) or state.refs[slot] = var
+     */
+    private void genPutField(MethodVisitor mv, int stateVar, ValInfo vi, int var) {
+        loadVar(mv, TOBJECT, stateVar);
+        if (!flat) {
+            loadVar(mv, vi.vmt, var);
+            mv.visitFieldInsn(PUTFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
+            return;
+        }
+        boolean ref = vi.vmt == TOBJECT;
+        mv.visitFieldInsn(GETFIELD, FLAT_STATE_CLASS, ref ? "refs" : "prims", ref ? "[Ljava/lang/Object;" : "[J");
+        pushInt(mv, vi.slot);
+        loadVar(mv, vi.vmt, var);
+        switch (vi.vmt) {
+            case VMType.TINT:
+                mv.visitInsn(I2L);
+                break;
+            case VMType.TFLOAT:
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false);
+                mv.visitInsn(I2L);
+                break;
+            case VMType.TDOUBLE:
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false);
+                break;
+        }
+        mv.visitInsn(ref ? AASTORE : LASTORE);
+    }
+
+    /**
+     * push state.field, or in flat mode the value from state.prims[slot] or state.refs[slot].
+     * the caller casts to the value's type, as for a field of the vm type
+     */
+    private void genGetField(MethodVisitor mv, int stateVar, ValInfo vi) {
+        loadVar(mv, TOBJECT, stateVar);
+        if (!flat) {
+            mv.visitFieldInsn(GETFIELD, stateClassName, vi.fieldName, vi.fieldDesc());
+            return;
+        }
+        boolean ref = vi.vmt == TOBJECT;
+        mv.visitFieldInsn(GETFIELD, FLAT_STATE_CLASS, ref ? "refs" : "prims", ref ? "[Ljava/lang/Object;" : "[J");
+        pushInt(mv, vi.slot);
+        mv.visitInsn(ref ? AALOAD : LALOAD);
+        switch (vi.vmt) {
+            case VMType.TINT:
+                mv.visitInsn(L2I);
+                break;
+            case VMType.TFLOAT:
+                mv.visitInsn(L2I);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "intBitsToFloat", "(I)F", false);
+                break;
+            case VMType.TDOUBLE:
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D", false);
+                break;
+        }
+    }
+
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value < 6) {
+            mv.visitInsn(ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(BIPUSH, value);
+        } else {
+            mv.visitIntInsn(SIPUSH, value);
+        }
+    }
+
     private String getReceiverTypename() {
         MethodInsnNode min = getMethodInsn();
         return min.owner;
@@ -885,8 +999,9 @@ public class CallWeaver {
     }
 
     private String createStateClass() {
-        return valInfoList.size() == 0 ? STATE_CLASS :  
-            methodWeaver.createStateClass(valInfoList);
+        if (valInfoList.size() == 0)
+            return STATE_CLASS;
+        return flat ? FLAT_STATE_CLASS : methodWeaver.createStateClass(valInfoList);
     }
 
     private int allocVar(int size) {
@@ -948,6 +1063,12 @@ class ValInfo implements Comparable<ValInfo> {
      */
     String fieldName;
 
+    /**
+     * The index in the FlatState's prims or refs array, according to the value's
+     * position among the values of the same kind.
+     */
+    int    slot;
+
     ValInfo(Value v) {
         val = v;
         vmt = VMType.toVmType(v.getTypeDesc());
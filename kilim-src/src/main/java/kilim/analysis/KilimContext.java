@@ -8,6 +8,23 @@ public class KilimContext {
     static public KilimContext DEFAULT = new KilimContext();
     
     public Detector detector;
+    /**
+     * weave a budget check into the loop back-edges of pausable methods, yielding once the task has run
+     * for longer than its quantum, see Task.overBudget. defaults to the kilim.weaver.preempt property
+     */
+    public boolean preempt = Boolean.getBoolean("kilim.weaver.preempt");
+    /**
+     * save state into the State object that was last restored at the same depth of the fiber, if it is
+     * of the right class, instead of allocating a new one, see Fiber.reuse.
+     * defaults to the kilim.weaver.reuse property
+     */
+    public boolean reuseStates = Boolean.getBoolean("kilim.weaver.reuse");
+    /**
+     * spill the saved values into the arrays of a FlatState owned by the fiber, rather than the fields of
+     * a generated State class, see Fiber.flat. takes precedence over reuseStates.
+     * defaults to the kilim.weaver.flat property
+     */
+    public boolean flatStates = Boolean.getBoolean("kilim.weaver.flat");
     
     public KilimContext() {
         detector = new Detector(new CachedClassMirrors());
@@ -5,14 +5,22 @@
  */
 
 package kilim.analysis;
+import static kilim.Constants.D_TASK;
 import static kilim.Constants.NOT_PAUSABLE_CLASS;
 import static kilim.Constants.PAUSABLE_CLASS;
+import static kilim.Constants.TASK_CLASS;
+import static kilim.Constants.WOVEN_FIELD;
 import static kilim.analysis.BasicBlock.COALESCED;
 import static kilim.analysis.BasicBlock.ENQUEUED;
 import static kilim.analysis.BasicBlock.INLINE_CHECKED;
 import static org.objectweb.asm.Opcodes.ACC_STATIC;
 import static org.objectweb.asm.Opcodes.ACC_VOLATILE;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
 import static org.objectweb.asm.Opcodes.JSR;
+import static org.objectweb.asm.Opcodes.MONITORENTER;
+import static org.objectweb.asm.Opcodes.NOP;
 
 import java.util.ArrayList;
 import java.util.BitSet;
@@ -35,7 +43,9 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LineNumberNode;
@@ -95,6 +105,13 @@ public class MethodFlow extends MethodNode {
     private HashMap<Integer, FrameNode> frameNodes = new HashMap<Integer, FrameNode>();
 
     private boolean hasPausableInvokeDynamic;
+
+    /** insert budget checks at back-edges, see KilimContext.preempt */
+    private boolean preempt;
+    private boolean hasPreempt;
+    private boolean hasMonitor;
+    /** the inserted budget checks, undone in visitEnd if the method enters a monitor */
+    private List<AbstractInsnNode> preemptInsns;
     
     /** copy of handlers provided by asm - null after being assigned to the BBs */
     ArrayList<Handler> origHandlers;
@@ -124,6 +141,16 @@ public class MethodFlow extends MethodNode {
                 }
             }
         }
+        KilimContext context = classFlow.context;
+        preempt = hasPausableAnnotation && context != null && context.preempt && !isWoven(classFlow);
+    }
+
+    /** the fields are visited before the methods, so this is valid before ClassFlow.isWoven is set */
+    private static boolean isWoven(ClassFlow classFlow) {
+        for (Object o : classFlow.fields)
+            if (((FieldNode) o).name.equals(WOVEN_FIELD))
+                return true;
+        return false;
     }
 
     public void restoreNonInstructionNodes() {
@@ -249,6 +276,70 @@ public class MethodFlow extends MethodNode {
         super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
     }
     
+    @Override
+    public void visitInsn(int opcode) {
+        if (opcode==MONITORENTER)
+            hasMonitor = true;
+        super.visitInsn(opcode);
+    }
+
+    /**
+     * a jump to a label that has already been visited is a loop back-edge. with preemption enabled,
+     * check the budget first:
+     * <pre>
+     *   invokestatic Task.getCurrentTask  ;; woven to fiber.task
+     *   invokevirtual Task.overBudget
+     *   ifeq SKIP
+     *   invokestatic Task.yield
+     * SKIP:
+     *   original jump
+     * </pre>
+     * the inserted calls are ordinary pausable calls, so the rest of the weaving is unchanged.
+     * a pausable call is rejected while a monitor is held, and the monitor depth at a back-edge isn't
+     * known from the visit order (eg the exit in the handler of a nested synchronized block), so a method
+     * that enters a monitor isn't preempted at all, see visitEnd
+     */
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        if (preempt && !hasMonitor && opcode != JSR && labelToPosMap.containsKey(getLabelNode(label))) {
+            Label skip = new Label();
+            if (preemptInsns == null)
+                preemptInsns = new ArrayList<AbstractInsnNode>();
+            int first = instructions.size();
+            visitMethodInsn(INVOKESTATIC, TASK_CLASS, "getCurrentTask", "()" + D_TASK, false);
+            visitMethodInsn(INVOKEVIRTUAL, TASK_CLASS, "overBudget", "()Z", false);
+            super.visitJumpInsn(IFEQ, skip);
+            visitMethodInsn(INVOKESTATIC, TASK_CLASS, "yield", "()V", false);
+            for (int i = first; i < instructions.size(); i++)
+                preemptInsns.add(instructions.get(i));
+            visitLabel(skip);
+            hasPreempt = true;
+        }
+        super.visitJumpInsn(opcode, label);
+    }
+
+    /**
+     * a monitor entered after a budget check was inserted: replace the checks with nops, which keeps the
+     * positions recorded for labels, line numbers and frames
+     */
+    @Override
+    public void visitEnd() {
+        if (hasMonitor && preemptInsns != null) {
+            for (AbstractInsnNode ain : preemptInsns) {
+                pausableMethods.remove(ain);
+                instructions.set(ain, new InsnNode(NOP));
+            }
+            preemptInsns = null;
+        }
+        super.visitEnd();
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        // the task reference is pushed on top of any operands of a conditional back-edge
+        super.visitMaxs(hasPreempt ? maxStack+1 : maxStack, maxLocals);
+    }
+
     @Override
     public void visitLabel(Label label) {
         setLabel(instructions.size(), super.getLabelNode(label));
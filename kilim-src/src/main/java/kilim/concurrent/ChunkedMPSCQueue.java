@@ -0,0 +1,234 @@
+package kilim.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import static kilim.concurrent.UnsafeAccess.UNSAFE;
+
+/**
+ * a lock-free, optionally bounded, multi-producer single-consumer queue. like MPSCQueue, producers claim
+ * an index with a CAS on the tail, but the slots live in a linked list of array chunks, so the queue
+ * grows without copying and an idle queue holds on to a single chunk. chunks double in size up to
+ * MAX_CHUNK, and the consumer drops each chunk as it finishes with it
+ *
+ * the slot write of offer is a volatile store, ie a producer that then checks for a waiting consumer
+ * is ordered with a consumer that registers and then polls. poll returns null for an element that has
+ * been claimed but not yet written, so size() may count elements that poll doesn't see yet
+ */
+public class ChunkedMPSCQueue<E> {
+    public static final int MAX_CHUNK = 1024;
+
+    static final class Chunk {
+        final long base;
+        final Object [] slots;
+        volatile Chunk next;
+        Chunk(long base,int len) {
+            this.base = base;
+            slots = new Object[len];
+        }
+        Chunk next() {
+            Chunk n = next;
+            if (n == null) {
+                int len = slots.length;
+                n = new Chunk(base + len, Math.max(len, Math.min(2*len, MAX_CHUNK)));
+                if (!nextUpdater.compareAndSet(this, null, n))
+                    n = next;
+            }
+            return n;
+        }
+    }
+    private static final AtomicReferenceFieldUpdater<Chunk,Chunk> nextUpdater
+            = AtomicReferenceFieldUpdater.newUpdater(Chunk.class,Chunk.class,"next");
+    private static final AtomicReferenceFieldUpdater<ChunkedMPSCQueue,Chunk> lastUpdater
+            = AtomicReferenceFieldUpdater.newUpdater(ChunkedMPSCQueue.class,Chunk.class,"last");
+    private static final AtomicLongFieldUpdater<ChunkedMPSCQueue> tailUpdater
+            = AtomicLongFieldUpdater.newUpdater(ChunkedMPSCQueue.class,"tail");
+
+    private static final long ARRAY_BASE = UNSAFE.arrayBaseOffset(Object[].class);
+    private static final int ELEMENT_SHIFT = 31 - Integer.numberOfLeadingZeros(UNSAFE.arrayIndexScale(Object[].class));
+
+    /** the next index to be claimed by a producer */
+    private volatile long tail;
+    /** the next index to be consumed, written only by the consumer */
+    private volatile long head;
+    /** the chunk holding head, written only by the consumer */
+    private volatile Chunk first;
+    /** a chunk at or before the one holding tail, where producers start looking for their slot */
+    private volatile Chunk last;
+    private final long limit;
+
+    public ChunkedMPSCQueue(int initialSize,int limit) {
+        first = last = new Chunk(0,Math.max(initialSize,1));
+        this.limit = limit;
+    }
+
+    private static long offset(Chunk c,long index) {
+        return ARRAY_BASE + ((index - c.base) << ELEMENT_SHIFT);
+    }
+
+    /** the chunk holding index, walking forward from c and linking new chunks as needed */
+    private static Chunk find(Chunk c,long index) {
+        while (index >= c.base + c.slots.length)
+            c = c.next();
+        return c;
+    }
+
+    /** add an element, returning false if the queue is at its limit */
+    public boolean offer(E e) {
+        if (null == e)
+            throw new NullPointerException("Null is not a valid element");
+        Chunk c;
+        long t;
+        do {
+            // read before the claim, so that it can't be past the claimed index
+            c = last;
+            t = tail;
+            if (t - head >= limit)
+                return false;
+        } while (!tailUpdater.compareAndSet(this, t, t + 1));
+        c = find(c, t);
+        Chunk l = last;
+        if (l.base < c.base)
+            lastUpdater.compareAndSet(this, l, c);
+        UNSAFE.putObjectVolatile(c.slots, offset(c, t), e);
+        return true;
+    }
+
+    /**
+     * add a run of elements, claiming all the slots with a single CAS
+     * @return the number of elements added, starting at offset, which may be less than len if the queue fills
+     */
+    public int offerAll(E [] src,int offset,int len) {
+        Chunk c;
+        long t;
+        int num;
+        do {
+            c = last;
+            t = tail;
+            num = (int) Math.min(len, limit - (t - head));
+            if (num <= 0)
+                return 0;
+        } while (!tailUpdater.compareAndSet(this, t, t + num));
+        c = find(c, t);
+        for (int ii = 0; ii < num; ii++) {
+            if (t+ii == c.base + c.slots.length)
+                c = c.next();
+            UNSAFE.putObjectVolatile(c.slots, offset(c, t+ii), src[offset+ii]);
+        }
+        Chunk l = last;
+        if (l.base < c.base)
+            lastUpdater.compareAndSet(this, l, c);
+        return num;
+    }
+
+    /** consumer only. remove the oldest element, or return null if there isn't one or it's not yet written */
+    public E poll() {
+        long h = head;
+        if (tail == h)
+            return null;
+        Chunk c = first;
+        if (h == c.base + c.slots.length)
+            first = c = c.next();
+        long offset = offset(c, h);
+        @SuppressWarnings("unchecked")
+        E e = (E) UNSAFE.getObjectVolatile(c.slots, offset);
+        if (e == null)
+            return null;
+        UNSAFE.putObject(c.slots, offset, null);
+        head = h + 1;
+        return e;
+    }
+
+    /**
+     * consumer only. remove up to len of the oldest elements, stopping at the first that's not yet written
+     * @return the number of elements moved to buf, starting at offset
+     */
+    public int drain(E [] buf,int offset,int len) {
+        long h = head;
+        long t = tail;
+        Chunk c = first;
+        int num = 0;
+        for (; num < len && h+num < t; num++) {
+            long index = h + num;
+            if (index == c.base + c.slots.length)
+                c = c.next();
+            long off = offset(c, index);
+            @SuppressWarnings("unchecked")
+            E e = (E) UNSAFE.getObjectVolatile(c.slots, off);
+            if (e == null)
+                break;
+            UNSAFE.putObject(c.slots, off, null);
+            buf[offset+num] = e;
+        }
+        first = c;
+        if (num > 0)
+            head = h + num;
+        return num;
+    }
+
+    /**
+     * the idx'th element from the head, or null if there isn't one or it's not yet written.
+     * exact for the consumer, approximate for any other thread
+     */
+    @SuppressWarnings("unchecked")
+    public E peek(int idx) {
+        Chunk c = first;
+        long index = head + idx;
+        if (index >= tail)
+            return null;
+        c = find(c, index);
+        return (E) UNSAFE.getObjectVolatile(c.slots, offset(c, index));
+    }
+
+    /** whether the first num elements are all written */
+    public boolean available(int num) {
+        for (int ii = num - 1; ii >= 0; ii--)
+            if (peek(ii) == null)
+                return false;
+        return true;
+    }
+
+    /**
+     * consumer only. remove the idx'th element from the head, which must be written, as must those before it
+     * @throws IllegalStateException if there's no idx'th element, or it or one before it isn't yet written,
+     *   in which case the queue is unchanged
+     */
+    @SuppressWarnings("unchecked")
+    public E remove(int idx) {
+        long h = head;
+        if (h + idx >= tail)
+            throw new IllegalStateException("no element " + idx);
+        Chunk c = first;
+        E e = null;
+        for (long index = h; index <= h + idx; index++) {
+            c = find(c, index);
+            e = (E) UNSAFE.getObjectVolatile(c.slots, offset(c, index));
+            if (e == null)
+                throw new IllegalStateException("element " + (index - h) + " not yet written");
+        }
+        // shift the older elements up by one, over the removed one, and drop the head
+        for (long index = h + idx; index > h; index--) {
+            Chunk prev = find(first, index - 1);
+            UNSAFE.putObjectVolatile(c.slots, offset(c, index), UNSAFE.getObject(prev.slots, offset(prev, index - 1)));
+            c = prev;
+        }
+        poll();
+        return e;
+    }
+
+    /**
+     * the number of claimed slots, including any that a producer has claimed but not yet written
+     */
+    public int size() {
+        long h, t;
+        do {
+            h = head;
+            t = tail;
+        } while (h != head);
+        return (int) (t - h);
+    }
+
+    public boolean hasSpace() {
+        return size() < limit;
+    }
+}
@@ -0,0 +1,143 @@
+package kilim.concurrent;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * an unbounded multi-producer single-consumer queue of linked nodes, after Dmitry Vyukov's. a producer
+ * swaps its node into the tail and then links the previous tail to it, so offer is wait-free, ie a single
+ * atomic exchange with no retry. the consumer follows the links from a stub node, and the node of each
+ * element it takes becomes the new stub
+ *
+ * nodes are recycled through a small pool per thread: the consumer returns each stub it is done with, and
+ * offer takes from the pool of the current thread. when producers and consumers share the worker threads of
+ * a scheduler, a steady stream allocates nodes only until the pools are primed. a node is returned only
+ * after its successor has been linked, ie once no producer can still write to it
+ *
+ * the link to the previous tail is a volatile store, ie a producer that then checks for a waiting consumer
+ * is ordered with a consumer that registers and then polls. between the exchange and the link, the new
+ * element isn't reachable from the head, so poll may return null for a queue that isn't empty
+ */
+public class LinkedMPSCQueue<E> {
+    /** the maximum number of nodes kept by each thread for reuse, zero to disable */
+    public static int nodePoolSize = Integer.getInteger("kilim.node.pool",256);
+
+    static final class Node {
+        Object value;
+        volatile Node next;
+        /** the next node in the pool of a thread */
+        Node free;
+    }
+    private static final AtomicReferenceFieldUpdater<Node,Node> nextUpdater
+            = AtomicReferenceFieldUpdater.newUpdater(Node.class,Node.class,"next");
+    private static final AtomicReferenceFieldUpdater<LinkedMPSCQueue,Node> tailUpdater
+            = AtomicReferenceFieldUpdater.newUpdater(LinkedMPSCQueue.class,Node.class,"tail");
+    private static final AtomicReferenceFieldUpdater<LinkedMPSCQueue,Node> headUpdater
+            = AtomicReferenceFieldUpdater.newUpdater(LinkedMPSCQueue.class,Node.class,"head");
+
+    /** the per-thread pool of nodes */
+    private static final class Pool {
+        Node free;
+        int num;
+    }
+    private static final ThreadLocal<Pool> pools = new ThreadLocal<Pool>() {
+        protected Pool initialValue() { return new Pool(); }
+    };
+
+    /** the most recently added node, swapped in by producers */
+    private volatile Node tail;
+    /** the stub, whose successor holds the oldest element, written only by the consumer */
+    private volatile Node head;
+
+    public LinkedMPSCQueue() {
+        head = tail = new Node();
+    }
+
+    private static Node node() {
+        Pool pool = pools.get();
+        Node n = pool.free;
+        if (n == null)
+            return new Node();
+        pool.free = n.free;
+        pool.num--;
+        n.free = null;
+        return n;
+    }
+
+    private static void release(Node n,Pool pool) {
+        if (pool.num >= nodePoolSize)
+            return;
+        n.value = null;
+        nextUpdater.lazySet(n, null);
+        n.free = pool.free;
+        pool.free = n;
+        pool.num++;
+    }
+
+    /** add an element, which always succeeds */
+    public boolean offer(E e) {
+        if (null == e)
+            throw new NullPointerException("Null is not a valid element");
+        Node n = node();
+        n.value = e;
+        Node prev = tailUpdater.getAndSet(this, n);
+        prev.next = n;
+        return true;
+    }
+
+    /** consumer only. remove the oldest element, or return null if there isn't one or it's not yet linked */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        Node h = head;
+        Node n = h.next;
+        if (n == null)
+            return null;
+        E e = (E) n.value;
+        n.value = null;
+        headUpdater.lazySet(this, n);
+        if (nodePoolSize > 0)
+            release(h, pools.get());
+        return e;
+    }
+
+    /**
+     * consumer only. remove up to len of the oldest elements, stopping at the first that's not yet linked
+     * @return the number of elements moved to buf, starting at offset
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(E [] buf,int offset,int len) {
+        Pool pool = nodePoolSize > 0 ? pools.get() : null;
+        Node h = head;
+        int num = 0;
+        for (Node n; num < len && (n = h.next) != null; num++, h = n) {
+            buf[offset+num] = (E) n.value;
+            n.value = null;
+            if (pool != null)
+                release(h, pool);
+        }
+        if (num > 0)
+            headUpdater.lazySet(this, h);
+        return num;
+    }
+
+    /** the oldest element, or null. exact for the consumer, approximate for any other thread */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        Node n = head.next;
+        return n==null ? null : (E) n.value;
+    }
+
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+
+    /**
+     * the number of linked elements, found by walking the list, ie it takes time linear in the size, and is
+     * approximate for any thread other than the consumer
+     */
+    public int size() {
+        int num = 0;
+        for (Node n = head.next; n != null && num < Integer.MAX_VALUE; n = n.next)
+            num++;
+        return num;
+    }
+}
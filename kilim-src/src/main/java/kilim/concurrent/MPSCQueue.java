@@ -181,6 +181,36 @@ public class MPSCQueue<E> extends MPSCQueueL3Pad<E> {
 		return true;
 	}
 
+	/**
+	 * offer a run of elements, claiming all the slots with a single CAS
+	 * @return the number of elements added, starting at offset, which may be less than len if the queue fills
+	 */
+	public int offerAll(final E[] src, final int offset, final int len) {
+		long currentTail;
+		int num;
+		for (int missCount = 0;;) {
+			currentTail = getTail();
+			num = (int) Math.min(len, capacity - (currentTail - getHead()));
+			if (num <= 0) {
+				return 0;
+			}
+			if (casTail(currentTail, currentTail + num)) {
+				break;
+			} else {
+				missCount = CAS_BACKOFF.backoff(missCount);
+			}
+		}
+		for (int i = 0; i < num; i++) {
+			UnsafeAccess.UNSAFE.putOrderedObject(buffer,
+					elementOffsetInBuffer(currentTail + i), src[offset + i]);
+		}
+		return num;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
 	public boolean hasSpace() {
 		long currentTail;
 		currentTail = getTail();
@@ -218,6 +248,28 @@ public class MPSCQueue<E> extends MPSCQueueL3Pad<E> {
 		
 	}
 	
+	/**
+	 * remove a run of elements, publishing the new head once
+	 * @return the number of elements moved to buf, starting at offset, stopping at the first not yet written
+	 */
+	public int drain(E []buf, int offset, int len) {
+		int num = 0;
+		for (; num < len; num++) {
+			final long elementOffset = elementOffsetInBuffer(head + num);
+			@SuppressWarnings("unchecked")
+			final E e = (E) UnsafeAccess.UNSAFE.getObjectVolatile(buffer, elementOffset);
+			if (null == e) {
+				break;
+			}
+			UnsafeAccess.UNSAFE.putObject(buffer, elementOffset, null);
+			buf[offset + num] = e;
+		}
+		if (num > 0) {
+			lazySetHead(head + num);
+		}
+		return num;
+	}
+	
 	public E remove() {
 		final E e = poll();
 		if (null == e) {
@@ -250,14 +302,17 @@ public class MPSCQueue<E> extends MPSCQueueL3Pad<E> {
 				elementOffsetInBuffer(index));
 	}
 
+	/**
+	 * the number of claimed slots, including any that a producer has claimed but not yet written
+	 */
 	public int size() {
 		long currentConsumerIndexBefore;
 		long currentProducerIndex;
 		long currentConsumerIndexAfter = getHead();
 		do {
 			currentConsumerIndexBefore = currentConsumerIndexAfter;
-			currentProducerIndex = getHead();
-			currentConsumerIndexAfter = getTail();
+			currentProducerIndex = getTail();
+			currentConsumerIndexAfter = getHead();
 		} while (currentConsumerIndexBefore != currentConsumerIndexAfter);
 		return (int) (currentProducerIndex - currentConsumerIndexBefore);
 	}
@@ -0,0 +1,50 @@
+package kilim.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a generation counter that threads can block on until the next signal,
+ * eg for a scheduler to announce that its count of running tasks has dropped to zero.
+ * a waiter reads the generation, checks its condition, and then awaits a change in the generation,
+ * so a signal that arrives between the check and the await is not lost
+ */
+public class Quiescence {
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile int waiters;
+
+    /** the current generation, to be passed to await */
+    public int generation() {
+        return generation.get();
+    }
+
+    /** advance the generation, waking any waiters. cheap if there are none */
+    public void signal() {
+        generation.incrementAndGet();
+        if (waiters > 0)
+            synchronized (this) { notifyAll(); }
+    }
+
+    /**
+     * wait for the generation to advance past gen
+     * @param gen the generation read before checking the condition
+     * @param millis the maximum time to wait
+     * @return false if interrupted, otherwise true (whether signaled or timed out)
+     */
+    public boolean await(int gen,long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (this) {
+            waiters++;
+            try {
+                for (long remaining = millis; generation.get()==gen && remaining > 0;
+                        remaining = deadline - System.currentTimeMillis())
+                    wait(remaining);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally { waiters--; }
+        }
+        return true;
+    }
+}
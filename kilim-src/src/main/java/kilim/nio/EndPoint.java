@@ -13,6 +13,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 
+import kilim.CancelledException;
 import kilim.Mailbox;
 import kilim.Pausable;
 import kilim.Task;
@@ -178,19 +179,25 @@ public class EndPoint { // Mailbox for receiving socket ready events.
 
     // TODO. Need to introduce session timeouts for read and write
     public void pauseUntilReadable() throws Pausable, IOException {
-        SockEvent ev = new SockEvent(box, sockch, SelectionKey.OP_READ);
-        sched.regbox.putnb(ev);
-        box.get();
+        pauseUntil(SelectionKey.OP_READ);
     }
     public void pauseUntilWritable() throws Pausable, IOException {
-        SockEvent ev = new SockEvent(box, sockch, SelectionKey.OP_WRITE);
-        sched.regbox.putnb(ev);
-        box.get();
+        pauseUntil(SelectionKey.OP_WRITE);
     }
     public void pauseUntilAcceptable() throws Pausable, IOException {
-        SockEvent ev = new SockEvent(box, sockch, SelectionKey.OP_ACCEPT);
+        pauseUntil(SelectionKey.OP_ACCEPT);
+    }
+    private void pauseUntil(int ops) throws Pausable {
+        SockEvent ev = new SockEvent(box, sockch, ops);
         sched.regbox.putnb(ev);
-        box.get();
+        try {
+            box.get();
+        }
+        catch (CancelledException ex) {
+            // the task is gone, so drop the interest rather than leave the selector to wake an empty box
+            sched.regbox.putnb(new SockEvent(box, sockch, 0));
+            throw ex;
+        }
     }
 
 
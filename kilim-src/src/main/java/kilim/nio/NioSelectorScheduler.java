@@ -8,6 +8,8 @@ package kilim.nio;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -122,16 +124,21 @@ public class NioSelectorScheduler {
                     else n = sel.select();
                 } catch (IOException ignore) { n = 0; ignore.printStackTrace(); }
                 if (n > 0) {
-                    Iterator<SelectionKey> it = sel.selectedKeys().iterator();
-                    while (it.hasNext()) {
-                        SelectionKey sk = it.next();
-                        it.remove();
-                        Object o = sk.attachment();
-                        sk.interestOps(0);
-                        assert(o instanceof SockEvent);
-                        SockEvent ev = (SockEvent) o;
-                        ev.replyTo.putnb(ev);
+                    // batch the wakeups so that the tasks are published to each worker together
+                    Scheduler.openBatch();
+                    try {
+                        Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+                        while (it.hasNext()) {
+                            SelectionKey sk = it.next();
+                            it.remove();
+                            Object o = sk.attachment();
+                            sk.interestOps(0);
+                            assert(o instanceof SockEvent);
+                            SockEvent ev = (SockEvent) o;
+                            ev.replyTo.putnb(ev);
+                        }
                     }
+                    finally { Scheduler.flushBatch(); }
                 }
                 if (update.getAndSet(false))
                     regtask.run();
@@ -199,8 +206,12 @@ public class NioSelectorScheduler {
         public void execute() throws Pausable, Exception {
             while (true) {
                 SockEvent ev = regbox.get();
-                SelectionKey sk = ev.ch.register(sel, ev.interestOps);
-                sk.attach(ev);
+                try {
+                    SelectionKey sk = ev.ch.register(sel, ev.interestOps);
+                    sk.attach(ev);
+                }
+                // a cancelled task may close the channel before its interest is dropped, leaving nothing to register
+                catch (ClosedChannelException | CancelledKeyException ex) {}
             }
         }
     }
@@ -83,9 +83,29 @@ public class TimerPriorityHeap {
 
 	}
 
-	// private void heapify() {
-	// for (int i = size / 2; i >= 1; i--)
-	// heapifyDown(i);
-	// }
+	/**
+	 * remove the cancelled timers, ie those with a negative execution time, from anywhere in the heap.
+	 * a cancelled timer is otherwise only removed once it reaches the top
+	 */
+	public void purge() {
+		int num = 0;
+		for (int i = 1; i <= size; i++) {
+			Timer t = queue[i];
+			if (t.getExecutionTime() < 0)
+				t.onHeap = false;
+			else {
+				queue[++num] = t;
+				t.index = num;
+			}
+		}
+		Arrays.fill(queue, num + 1, size + 1, null);
+		size = num;
+		heapify();
+	}
+
+	private void heapify() {
+		for (int i = size / 2; i >= 1; i--)
+			heapifyDown(i);
+	}
 
 }
@@ -8,9 +8,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
-import kilim.Event;
-import kilim.EventPublisher;
-import kilim.EventSubscriber;
+import kilim.Scheduler;
 import kilim.concurrent.MPSCQueue;
 
 public class TimerService {
@@ -18,6 +16,8 @@ public class TimerService {
     private final TimerPriorityHeap timerHeap;
     private ScheduledExecutorService timerProxy;
     final private Lock lock;
+    /** is a batch open for the timers fired by doTrigger, guarded by lock */
+    private boolean batched;
     private static boolean debugStats = false;
     /** a recent, but not necessarily the most recent, watchdog */
     private volatile WatchdogTask argos = new WatchdogTask(0);
@@ -66,31 +66,25 @@ public class TimerService {
     private boolean empty() { return timerHeap.isEmpty() && timerQueue.isEmpty(); }
     
     /**
-     * return true if empty at a particular moment during the call
-     *  allowing false negatives if operations are ongoing
+     * return true if there are no live timers, ie none queued and none on the heap that haven't been cancelled.
+     * processes the queue (firing any expired timers and arming the watchdog for the rest), and then
+     * blocks on the lock to purge the cancelled timers
      */
-    public boolean isEmptyLazy(WatchdogContext executor) {
-        return empty() && new Empty().check(executor);
-    }
-    private class Empty implements EventSubscriber {
-        boolean empty, done;
-        WatchdogContext executor;
-        @Override
-        public void onEvent(EventPublisher ep,Event e) {
-            empty = executor.isEmpty() && empty();
-            done = true;
-            synchronized (this) { this.notify(); }
-        }
-        boolean check(WatchdogContext executor) {
-            this.executor = executor;
-            if (! timerQueue.offer(new kilim.timerservice.Timer(this)))
-                return false;
-            trigger(executor);
-            synchronized (this) {
-                try { if (!done) this.wait(); } catch (InterruptedException ex) {}
-            }
-            return empty;
+    public boolean isEmpty() {
+        trigger(defaultExec);
+        lock.lock();
+        try {
+            timerHeap.purge();
+            return empty();
         }
+        finally { lock.unlock(); }
+    }
+
+    /**
+     * return true if there are no live timers and the executor is empty
+     */
+    public boolean isEmptyLazy(WatchdogContext executor) {
+        return isEmpty() && executor.isEmpty();
     }
     
     public void trigger(final WatchdogContext doghouse) {
@@ -123,6 +117,28 @@ public class TimerService {
     }
     
     private long doTrigger(long currentTime) {
+        // the wakeups from expired timers are batched, but the batch is only opened once a timer fires
+        //   since trigger runs after every task
+        try {
+            return doTrigger0(currentTime);
+        }
+        finally {
+            if (batched) {
+                batched = false;
+                Scheduler.flushBatch();
+            }
+        }
+    }
+
+    private void fire(Timer t) {
+        if (! batched) {
+            Scheduler.openBatch();
+            batched = true;
+        }
+        t.es.onEvent(null,Timer.timedOut);
+    }
+
+    private long doTrigger0(long currentTime) {
         Timer[] buf = new Timer[100];
         for (Timer t; (t = timerHeap.peek())!=null && t.getExecutionTime()==-1;) {
             t.onHeap = false;
@@ -140,7 +156,7 @@ public class TimerService {
                 if (executionTime<0)
                     t = null;
                 else if (executionTime > 0 && executionTime<=currentTime)
-                    t.es.onEvent(null,Timer.timedOut);
+                    fire(t);
                 else if (!t.onHeap) {
                     timerHeap.add(t);
                     t.onHeap = true;
@@ -158,7 +174,7 @@ public class TimerService {
             t.onHeap = false;
             timerHeap.poll();
             if (executionTime >= 0)
-                t.es.onEvent(null,Timer.timedOut);
+                fire(t);
         }
         return 0L;
     }
@@ -37,6 +37,9 @@ public class Weaver {
     public static boolean force = false;
     public static boolean proxy = true;
     public static Pattern excludePattern = null;
+    public static boolean preempt = false;
+    public static boolean reuseStates = false;
+    public static boolean flatStates = false;
     static int err = 0;
 
     public KilimContext context;
@@ -68,6 +71,9 @@ public class Weaver {
      * <li>-h: print help info</li>
      * <li>-q: quiet</li>
      * <li>-x regex: exclude, skip classes matching regex</li>
+     * <li>-p: preempt, check the task's time budget at loop back-edges and yield once it is exceeded</li>
+     * <li>-r: reuse, save state into the fiber's spare State objects instead of allocating on every pause</li>
+     * <li>-s: spill, save state into arrays owned by the fiber instead of generated State classes</li>
      * </ul>
      * 
      * Ensure that all classes to be woven are in the classpath. The output directory does not have to be 
@@ -100,6 +106,12 @@ public class Weaver {
         }
         else
             weaver = new Weaver(null);
+        if (preempt)
+            weaver.context.preempt = true;
+        if (reuseStates)
+            weaver.context.reuseStates = true;
+        if (flatStates)
+            weaver.context.flatStates = true;
 
         String currentName = null;
         for (String name : names) {
@@ -237,6 +249,9 @@ public class Weaver {
         System.err.println("                    -x <regex> : exclude all classes matching regex");
         System.err.println("                    -f         : weave even if up to date");
         System.err.println("                    -c         : don't add targets to classpath");
+        System.err.println("                    -p         : yield at loop back-edges once over budget");
+        System.err.println("                    -r         : reuse State objects between pauses");
+        System.err.println("                    -s         : spill state into the fiber's arrays");
         System.exit(1);
     }
 
@@ -256,6 +271,12 @@ public class Weaver {
                 force = true;
             } else if (arg.equals("-c")) {
                 proxy = false;
+            } else if (arg.equals("-p")) {
+                preempt = true;
+            } else if (arg.equals("-r")) {
+                reuseStates = true;
+            } else if (arg.equals("-s")) {
+                flatStates = true;
             } else if (arg.equals("-h")) {
                 help();
             } else if (arg.equals("-x")) {
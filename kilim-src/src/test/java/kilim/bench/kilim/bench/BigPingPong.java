@@ -85,7 +85,7 @@ public class BigPingPong extends Task {
     public void execute() throws Pausable {
         done = false;
         int l = mboxes.length;
-        Msg mymsg = new Msg(id);
+        Msg mymsg = new Msg((int) id);
         
         int me = n;
         Mailbox<Msg> mymb = mboxes[me];
@@ -13,8 +13,13 @@ import kilim.*;
 // Or     
 //Usage: java kilim.bench.LotsOfTasks ntasks pause 
 //          creates ntasks, which in turn block indefinitely on their mailboxes.
+// Or
+//Usage: java kilim.bench.LotsOfTasks -nTasks n -fork
+//          a task forks ntasks that exit immediately, ie the fan-out case that reuses pooled fibers
+// each round prints the tasks per second, and for -block the growth of the heap per live task
 public class LotsOfTasks {
     static boolean block;
+    static boolean fork;
     static int nTasks = 100000;
     static int nRounds = 10;
 
@@ -28,25 +33,37 @@ public class LotsOfTasks {
                     nTasks = Integer.parseInt(args[++i]);
                 } else if (arg.equalsIgnoreCase("-block")) {
                     block = true;
+                } else if (arg.equalsIgnoreCase("-fork")) {
+                    fork = true;
                 }
             }
         } catch (NumberFormatException e) {
             e.printStackTrace();
             System.exit(0);
         }
-        System.out.println("kilim.bench.LotsOfTasks -nTasks " + nTasks + (block ? " -block": "") + " -nRounds " + nRounds);
+        System.out.println("kilim.bench.LotsOfTasks -nTasks " + nTasks + (block ? " -block": "") + (fork ? " -fork": "") + " -nRounds " + nRounds);
 
         final Stopwatch s = new Stopwatch("Tasks(" + nTasks + ")");
         for (int round = 1; round <= nRounds; round++) {
             System.out.println("Round #" + round + " ================= ");
+            // blocked tasks are otherwise unreachable, so hold on to them until the heap is measured
+            Task [] live = block ? new Task[nTasks] : null;
+            long heap = block ? used() : 0;
             s.tick();
             final Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
 
             System.out.println("Creating " + nTasks + (block ? " blocking tasks" : " tasks"));
-            for (int i = 1; i <= nTasks; i++) {
+            if (fork) {
+                Task.fork(() -> {
+                    for (int i = 1; i <= nTasks; i++)
+                        Task.fork(() -> {}).informOnExit(exitmb);
+                });
+            }
+            else for (int i = 1; i <= nTasks; i++) {
                 Task t = new LTask();
                 t.informOnExit(exitmb);
                 t.start();
+                if (block) live[i-1] = t;
                 if (i % 100000 == 0) {
                     System.out.println("  created " + i + " tasks .... (contd.)");
                 }
@@ -65,12 +82,22 @@ public class LotsOfTasks {
             System.out.println("Round #" + round + " done:");
             System.out.print("  ");
             s.tickPrint(nTasks);
+            if (block) {
+                System.out.println("  bytes/task: " + (used() - heap) / nTasks);
+                live = null;
+            }
             System.gc();
             Thread.sleep(100); // give the GC a chance.
         }
         System.exit(0);
     }
 
+    static long used() {
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
     public static void profilerMark() {
         // dummy method to help as a profiler breakpoint in JProfiler.
     }
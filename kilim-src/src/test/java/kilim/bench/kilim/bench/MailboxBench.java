@@ -0,0 +1,148 @@
+package kilim.bench;
+
+import kilim.*;
+
+// Usage: java kilim.bench.MailboxBench [-nProducers n] [-nMsgs n] [-nRounds n]
+//   contention on a single Mailbox, ie the fan-in of an actor with many clients:
+//     tasks:   nProducers tasks each put nMsgs messages, consumed by one task, all on one scheduler
+//     linked:  as tasks, on the unbounded MailboxLinked
+//     batch:   as tasks, but producers putAll bursts of 16 and the consumer drains with getAll
+//     threads: nProducers threads each putnb nMsgs messages, yielding while it's full, consumed by a thread with getb
+public class MailboxBench {
+    static int nProducers = 8;
+    static int nMsgs = 200000;
+    static int nRounds = 5;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nProducers")) {
+                    nProducers = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nMsgs")) {
+                    nMsgs = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nRounds")) {
+                    nRounds = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        System.out.println("kilim.bench.MailboxBench -nProducers " + nProducers + " -nMsgs " + nMsgs
+                + " -nRounds " + nRounds);
+        int total = nProducers * nMsgs;
+        for (int round = 1; round <= nRounds; round++) {
+            System.out.println("Round #" + round + " ================= ");
+            Scheduler sched = Scheduler.make(nProducers + 1);
+            long tasks = tasks(sched);
+            long linked = linked(sched);
+            long batch = batch(sched);
+            long threads = threads();
+            System.out.format("  tasks:   %6d ms, %6.1f ns/msg\n", tasks, 1e6 * tasks / total);
+            System.out.format("  linked:  %6d ms, %6.1f ns/msg\n", linked, 1e6 * linked / total);
+            System.out.format("  batch:   %6d ms, %6.1f ns/msg\n", batch, 1e6 * batch / total);
+            System.out.format("  threads: %6d ms, %6.1f ns/msg\n", threads, 1e6 * threads / total);
+            sched.shutdown();
+        }
+        System.exit(0);
+    }
+
+    static long tasks(Scheduler sched) {
+        long start = System.currentTimeMillis();
+        final Mailbox<Integer> mb = new Mailbox<Integer>();
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                for (int i = 0; i < nProducers * nMsgs; i++)
+                    mb.get();
+            }
+        };
+        consumer.setScheduler(sched);
+        consumer.start();
+        for (int i = 0; i < nProducers; i++) {
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    Integer msg = 1;
+                    for (int j = 0; j < nMsgs; j++)
+                        mb.put(msg);
+                }
+            };
+            t.setScheduler(sched);
+            t.start();
+        }
+        consumer.joinb();
+        return System.currentTimeMillis() - start;
+    }
+
+    static long linked(Scheduler sched) {
+        long start = System.currentTimeMillis();
+        final MailboxLinked<Integer> mb = new MailboxLinked<Integer>();
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                for (int i = 0; i < nProducers * nMsgs; i++)
+                    mb.get();
+            }
+        };
+        consumer.setScheduler(sched);
+        consumer.start();
+        for (int i = 0; i < nProducers; i++) {
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    Integer msg = 1;
+                    for (int j = 0; j < nMsgs; j++)
+                        mb.put(msg);
+                }
+            };
+            t.setScheduler(sched);
+            t.start();
+        }
+        consumer.joinb();
+        return System.currentTimeMillis() - start;
+    }
+
+    static long batch(Scheduler sched) {
+        long start = System.currentTimeMillis();
+        final Mailbox<Integer> mb = new Mailbox<Integer>();
+        Task consumer = new Task() {
+            public void execute() throws Pausable {
+                Integer [] buf = new Integer[64];
+                for (int i = 0; i < nProducers * nMsgs; )
+                    i += mb.getAll(buf);
+            }
+        };
+        consumer.setScheduler(sched);
+        consumer.start();
+        for (int i = 0; i < nProducers; i++) {
+            Task t = new Task() {
+                public void execute() throws Pausable {
+                    Integer [] msgs = new Integer[16];
+                    java.util.Arrays.fill(msgs, 1);
+                    for (int j = 0; j < nMsgs; j += msgs.length)
+                        mb.putAll(msgs);
+                }
+            };
+            t.setScheduler(sched);
+            t.start();
+        }
+        consumer.joinb();
+        return System.currentTimeMillis() - start;
+    }
+
+    static long threads() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        final Mailbox<Integer> mb = new Mailbox<Integer>();
+        for (int i = 0; i < nProducers; i++) {
+            new Thread() {
+                public void run() {
+                    Integer msg = 1;
+                    for (int j = 0; j < nMsgs; j++)
+                        while (!mb.putnb(msg))
+                            Thread.yield();
+                }
+            }.start();
+        }
+        for (int i = 0; i < nProducers * nMsgs; i++)
+            mb.getb();
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -0,0 +1,95 @@
+package kilim.bench;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import kilim.analysis.ClassInfo;
+import kilim.tools.Javac;
+import kilim.tools.Weaver;
+
+// Usage: java kilim.bench.StateBench [-src dir] [-n n] [-depth n] [-nMsgs n] [-nTasks n]
+//   compiles Unwind, Rec and Chain from source and weaves each twice, saving the frames in generated
+//   State classes (the default) and in the flat arrays of a FlatState owned by the fiber (Weaver -s),
+//   then runs the two copies side by side. dir holds the bench sources, by default the one in this tree
+public class StateBench {
+    static String src = "src/test/java/kilim/bench/kilim/bench";
+    static int n = 1000000;
+    static int depth = 50;
+    static int nMsgs = 10000;
+    static int nTasks = 500;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-src")) {
+                    src = args[++i];
+                } else if (arg.equalsIgnoreCase("-n")) {
+                    n = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-depth")) {
+                    depth = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nMsgs")) {
+                    nMsgs = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nTasks")) {
+                    nTasks = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        List<String> codes = new ArrayList<String>();
+        for (String name : new String[] { "Unwind", "Rec", "Chain" })
+            codes.add(new String(Files.readAllBytes(new File(src,name + ".java").toPath()),"UTF-8"));
+        List<ClassInfo> classes = Javac.compile(codes);
+        Loader state = new Loader(classes,false), flat = new Loader(classes,true);
+        for (Loader loader : new Loader[] { state, flat, state, flat }) {
+            System.out.println("---------- " + (loader==flat ? "flat" : "state") + " ----------");
+            String [] unwind = { "" + n*10 }, rec = { "" + n, "" + depth };
+            loader.loadClass("kilim.bench.Unwind").getMethod("main",String[].class).invoke(null,(Object) unwind);
+            loader.loadClass("kilim.bench.Rec").getMethod("main",String[].class).invoke(null,(Object) rec);
+            // Chain.main exits, so set its parameters and call bench directly
+            Class chain = loader.loadClass("kilim.bench.Chain");
+            Field field = chain.getDeclaredField("nMsgs");
+            field.setAccessible(true);
+            field.setInt(null,nMsgs);
+            Method bench = chain.getDeclaredMethod("bench",int.class,int.class);
+            bench.setAccessible(true);
+            bench.invoke(null,nMsgs,nTasks);
+        }
+        System.exit(0);
+    }
+
+    // loads the woven classes ahead of the copies already on the classpath
+    static class Loader extends ClassLoader {
+        HashMap<String,byte[]> classes = new HashMap<String,byte[]>();
+
+        Loader(List<ClassInfo> compiled,boolean flat) throws Exception {
+            super(StateBench.class.getClassLoader());
+            Weaver weaver = new Weaver(null);
+            weaver.context.flatStates = flat;
+            for (ClassInfo ci : compiled)
+                classes.put(ci.className,ci.bytes);
+            // only the classes that changed are returned, plus any new state classes
+            for (ClassInfo ci : weaver.weave(compiled))
+                classes.put(ci.className,ci.bytes);
+        }
+
+        protected Class<?> loadClass(String name,boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c==null) {
+                    byte [] bytes = classes.get(name);
+                    c = bytes==null ? super.loadClass(name,false) : defineClass(name,bytes,0,bytes.length);
+                }
+                if (resolve)
+                    resolveClass(c);
+                return c;
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package kilim.bench;
+
+import kilim.*;
+
+// Usage: java kilim.bench.VirtualBench [-nTasks n] [-nMsgs n] [-blockMillis n] [-nRounds n]
+//   compares ForkJoinScheduler and VirtualThreadScheduler side by side on two workloads:
+//     chain:    messages passed along a chain of tasks, ie pure fiber scheduling
+//     blocking: each task makes blocking calls (a Thread.sleep standing in for jdbc) between pauses
+public class VirtualBench {
+    static int nTasks = 500;
+    static int nMsgs = 1000;
+    static int blockMillis = 5;
+    static int nRounds = 5;
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equalsIgnoreCase("-nTasks")) {
+                    nTasks = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nMsgs")) {
+                    nMsgs = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-blockMillis")) {
+                    blockMillis = Integer.parseInt(args[++i]);
+                } else if (arg.equalsIgnoreCase("-nRounds")) {
+                    nRounds = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Integer argument expected");
+        }
+        int nThreads = Scheduler.defaultNumberThreads;
+        System.out.println("kilim.bench.VirtualBench -nTasks " + nTasks + " -nMsgs " + nMsgs
+                + " -blockMillis " + blockMillis + " -nRounds " + nRounds);
+        for (int round = 1; round <= nRounds; round++) {
+            System.out.println("Round #" + round + " ================= ");
+            ForkJoinScheduler fjs = new ForkJoinScheduler(nThreads);
+            VirtualThreadScheduler vts = new VirtualThreadScheduler(nThreads);
+            System.out.println("  chain    fork-join: " + chain(fjs) + " ms");
+            System.out.println("  chain    virtual:   " + chain(vts) + " ms");
+            System.out.println("  blocking fork-join: " + blocking(fjs) + " ms");
+            System.out.println("  blocking virtual:   " + blocking(vts) + (vts.isVirtual() ? "":" (fallback)") + " ms");
+            fjs.shutdown();
+            vts.shutdown();
+        }
+        System.exit(0);
+    }
+
+    static long chain(Scheduler sched) {
+        long start = System.currentTimeMillis();
+        Mailbox<Integer> done = new Mailbox<Integer>();
+        Mailbox<Integer> mb = new Mailbox<Integer>(), next = null;
+        for (int i = 0; i < nTasks; i++) {
+            Task t = new Link(mb,next,done);
+            t.setScheduler(sched);
+            t.start();
+            next = mb;
+            mb = new Mailbox<Integer>();
+        }
+        for (int i = 0; i < nMsgs; i++)
+            next.putb(i);
+        for (int i = 0; i < nMsgs; i++)
+            done.getb();
+        return System.currentTimeMillis() - start;
+    }
+
+    static long blocking(Scheduler sched) {
+        long start = System.currentTimeMillis();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < nTasks; i++) {
+            Task t = new Blocker();
+            t.setScheduler(sched);
+            t.informOnExit(exitmb);
+            t.start();
+        }
+        for (int i = 0; i < nTasks; i++)
+            exitmb.getb();
+        return System.currentTimeMillis() - start;
+    }
+
+    static class Link extends Task {
+        Mailbox<Integer> mymb, nextmb, done;
+        Link(Mailbox<Integer> mymb,Mailbox<Integer> nextmb,Mailbox<Integer> done) {
+            this.mymb = mymb;
+            this.nextmb = nextmb;
+            this.done = done;
+        }
+        public void execute() throws Pausable {
+            while (true) {
+                Integer val = mymb.get();
+                if (nextmb==null)
+                    done.put(val);
+                else
+                    nextmb.put(val);
+            }
+        }
+    }
+
+    static class Blocker extends Task {
+        public void execute() throws Pausable {
+            for (int i = 0; i < 4; i++) {
+                try { Thread.sleep(blockMillis); } catch (InterruptedException ex) {}
+                Task.yield();
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ package kilim.examples;
 
 import kilim.Fiber;
 import kilim.Generator;
+import kilim.LongGenerator;
 import kilim.Pausable;
 import kilim.Continuation;
 import kilim.tools.Kilim;
@@ -18,7 +19,7 @@ import kilim.tools.Kilim;
  *  runs xorshift a number of cycles, printing the nanos per cycle and the xor of the result
  *  the value is printed just to ensure that the JIT actually runs all the code
  *  https://en.wikipedia.org/wiki/Xorshift#xorshift.2B
- *  with modes to run the same algorithm as a Generator and as a raw Continuation (the default)
+ *  with modes to run the same algorithm as a Generator, as a batched LongGenerator and as a raw Continuation (the default)
  */
 public class Xorshift {
 
@@ -27,7 +28,7 @@ public class Xorshift {
         long cycles = 5000000;
         int reps = 10;
         if (args.length == 0) {
-            System.out.println("args: number of cycles, number of repeats, 'gen' for Generator");
+            System.out.println("args: number of cycles, number of repeats, 'gen' for Generator, 'long' for LongGenerator");
             System.out.format("\t no args provided using defaults: %d %d pure\n",cycles,reps);
         }
         try { cycles = Long.parseLong(args[0]); } catch (Exception ex) {}
@@ -36,9 +37,10 @@ public class Xorshift {
         int dual = 1;
         if (args.length > 2 && args[2].equals("gen")) pure = false;
         if (args.length > 2 && args[2].equals("dual")) dual = 10;
+        boolean batch = args.length > 2 && args[2].equals("long");
 
         for (int kk=0; kk < dual; kk++, pure=!pure) {
-            Loop primes = pure ? new X2() : new X1();
+            Loop primes = batch ? new X3() : pure ? new X2() : new X1();
 
             for (int jj=0; jj < reps; jj++)
                 cycle(primes,cycles);
@@ -94,6 +96,26 @@ public class Xorshift {
             return val;
         }
     }
+    public static class X3 extends LongGenerator implements Loop {
+        public X3() { super(1024); }
+        public void execute() throws Pausable {
+            long x, y, s0=103, s1=17;
+            while (true) {
+                x = s0;
+                y = s1;
+                s0 = y;
+                x ^= (x << 23);
+                s1 = x ^ y ^ (x >> 17) ^ (y >> 26);
+                yield(s1 + y);
+            }
+        }
+        public long loop(long num) {
+            long val = 0;
+            for (int ii=0; ii < num; ii++)
+                val = val ^ nextLong();
+            return val;
+        }
+    }
     /*
         from wikipedia:
         uint64_t x = s[0];
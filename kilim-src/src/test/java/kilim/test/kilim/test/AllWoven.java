@@ -23,6 +23,9 @@ public class AllWoven extends TestSuite {
     public static Test suite() {
         TestSuite ret = new AllWoven();
         ret.addTestSuite(TestPrefThread.class);
+        ret.addTestSuite(TestStealing.class);
+        ret.addTestSuite(TestScheduler.class);
+        ret.addTestSuite(TestScope.class);
         ret.addTestSuite(TestYield.class);
         ret.addTestSuite(TestInterface.class);
         ret.addTestSuite(TestAbstractExtends.class);
@@ -5,6 +5,10 @@ import java.util.HashSet;
 import java.util.List;
 
 import junit.framework.TestCase;
+import kilim.AffineScheduler;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Task;
 import kilim.analysis.ClassInfo;
 import kilim.tools.Javac;
 import kilim.tools.Weaver;
@@ -88,6 +92,134 @@ public class TestDynamicWeaver extends TestCase {
         }
     }
     
+    // a task that spins until another task on the same thread stops it, which is only possible if the loop yields
+    String spin =
+        "package code3;" +
+        "public class Spin extends kilim.Task {" +
+        "    public static volatile boolean stop;" +
+        "    public void execute() throws kilim.Pausable {" +
+        "        long num = 0;" +
+        "        while (!stop) num++;" +
+        "    }" +
+        "}";
+
+    String stop =
+        "package code3;" +
+        "public class Stop extends kilim.Task {" +
+        "    public void execute() throws kilim.Pausable { Spin.stop = true; }" +
+        "}";
+
+    public void testPreempt() throws Exception {
+        List<ClassInfo> classes = Javac.compile(Arrays.asList(spin, stop));
+        Weaver weaver = new Weaver(null);
+        weaver.context.preempt = true;
+        TestClassLoader cll = define(weaver.weave(classes));
+        AffineScheduler sched = new AffineScheduler(1,0);
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task spinner = (Task) cll.loadClass("code3.Spin").newInstance();
+        spinner.setScheduler(sched);
+        spinner.informOnExit(exitmb);
+        spinner.start();
+        Task stopper = (Task) cll.loadClass("code3.Stop").newInstance();
+        stopper.setScheduler(sched);
+        stopper.start();
+        assertNotNull(exitmb.getb(5000));
+        sched.shutdown();
+    }
+
+    // a back-edge ahead of the monitors, and one after the handler of the inner block
+    String sync =
+        "package code5;" +
+        "public class Sync extends kilim.Task {" +
+        "    Object a = new Object(), b = new Object();" +
+        "    public void execute() throws kilim.Pausable {" +
+        "        int c = 0;" +
+        "        for (int ii=0; ii < 3; ii++) c++;" +
+        "        synchronized(a) { while (c < 10) { synchronized(b) { c++; } } }" +
+        "        kilim.Task.yield();" +
+        "        kilim.Task.exit(c);" +
+        "    }" +
+        "}";
+
+    public void testPreemptSynchronized() throws Exception {
+        Weaver weaver = new Weaver(null);
+        weaver.context.preempt = true;
+        TestClassLoader cll = define(weaver.weave(Javac.compile(Arrays.asList(sync))));
+        Task task = (Task) cll.loadClass("code5.Sync").newInstance();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        task.informOnExit(exitmb);
+        task.start();
+        ExitMsg msg = exitmb.getb(5000);
+        assertNotNull(msg);
+        assertEquals(10, msg.result);
+    }
+
+    // pause at every level of a recursion, with locals of each category live across the pauses
+    String deep =
+        "package code4;" +
+        "public class Deep extends kilim.Task {" +
+        "    public void execute() throws kilim.Pausable {" +
+        "        long sum = 0;" +
+        "        for (int ii=0; ii < 100; ii++) sum += down(5, ii, \"x\" + ii);" +
+        "        kilim.Task.exit(sum);" +
+        "    }" +
+        "    long down(int depth, long val, String str) throws kilim.Pausable {" +
+        "        if (depth==0) { kilim.Task.yield(); return val + str.length(); }" +
+        "        double scale = depth * 0.5;" +
+        "        float half = depth / 2f;" +
+        "        long ret = down(depth-1, val+1, str);" +
+        "        kilim.Task.yield();" +
+        "        return ret + (long) scale + (long) half + str.length();" +
+        "    }" +
+        "}";
+
+    public void testReuseStates() throws Exception {
+        Weaver weaver = new Weaver(null);
+        weaver.context.reuseStates = true;
+        runDeep(weaver,"reuse");
+    }
+
+    public void testFlatStates() throws Exception {
+        Weaver weaver = new Weaver(null);
+        weaver.context.flatStates = true;
+        runDeep(weaver,"flat");
+    }
+
+    /** weave and run Deep, checking that the woven code calls the Fiber method for the mode */
+    void runDeep(Weaver weaver,String method) throws Exception {
+        List<ClassInfo> classes = weaver.weave(Javac.compile(Arrays.asList(deep)));
+        for (ClassInfo cl : classes) {
+            if (cl.className.equals("code4.Deep"))
+                assertTrue(new String(cl.bytes,"ISO-8859-1").contains(method));
+            else if (weaver.context.flatStates)
+                fail("state class generated in flat mode: " + cl.className);
+        }
+        Task task = (Task) define(classes).loadClass("code4.Deep").newInstance();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        task.informOnExit(exitmb);
+        task.start();
+        ExitMsg msg = exitmb.getb(5000);
+        assertNotNull(msg);
+        // down(5,val,str) == val + 17 + 6*str.length()
+        long expected = 0;
+        for (int ii=0; ii < 100; ii++)
+            expected += ii + 17 + 6*("x" + ii).length();
+        assertEquals(expected,msg.result);
+    }
+
+    /** define the woven classes that aren't already on the classpath, eg the state classes */
+    static TestClassLoader define(List<ClassInfo> classes) {
+        TestClassLoader cll = new TestClassLoader();
+        for (ClassInfo cl : classes) {
+            try {
+                cll.loadClass(cl.className);
+            } catch (ClassNotFoundException ignore) {
+                cll.load(cl);
+            }
+        }
+        return cll;
+    }
+
     static class TestClassLoader extends ClassLoader {
         public void load(ClassInfo cl) {
             Class<?> c = super.defineClass(cl.className, cl.bytes, 0, cl.bytes.length);
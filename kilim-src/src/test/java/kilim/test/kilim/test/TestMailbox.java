@@ -10,9 +10,13 @@ import java.util.HashMap;
 import java.util.HashSet;
 
 import junit.framework.TestCase;
+import kilim.Cell;
 import kilim.ExitMsg;
 import kilim.Mailbox;
+import kilim.MailboxLinked;
+import kilim.MailboxMPSC;
 import kilim.Pausable;
+import kilim.Selector;
 import kilim.Task;
 
 public class TestMailbox extends TestCase { 
@@ -222,6 +226,188 @@ public class TestMailbox extends TestCase {
         }
     }
 
+    // bursts through a mailbox smaller than a burst, so both putAll and the batch get pause
+    public void testBatch() {
+        final int nBursts = 100, burst = 10;
+        final Mailbox<Integer> mb = new Mailbox<Integer>(4, 4), result = new Mailbox<Integer>();
+        new Task() {
+            public void execute() throws Pausable {
+                Integer [] vals = new Integer[burst];
+                for (int ii = 0; ii < nBursts; ii++) {
+                    for (int jj = 0; jj < burst; jj++)
+                        vals[jj] = ii*burst + jj;
+                    mb.putAll(vals);
+                }
+            }
+        }.start();
+        new Task() {
+            public void execute() throws Pausable {
+                Integer [] buf = new Integer[8];
+                int next = 0;
+                while (next < nBursts*burst) {
+                    int num = mb.getAll(buf);
+                    for (int ii = 0; ii < num; ii++)
+                        if (buf[ii] != next++) next = -1 - nBursts*burst;
+                }
+                result.put(next);
+            }
+        }.start();
+        assertEquals(nBursts*burst, result.getb(5000).intValue());
+        assertEquals(0, mb.getAllnb(new Integer[4]));
+    }
+
+    // remove from the middle, across a chunk boundary, and past the end, which leaves the mailbox unchanged
+    public void testRemove() {
+        Mailbox<Integer> mb = new Mailbox<Integer>(4, 10);
+        for (int ii = 0; ii < 6; ii++)
+            assertTrue(mb.putnb(ii));
+        assertEquals(4, mb.remove(4).intValue());
+        assertEquals(0, mb.remove(0).intValue());
+        try {
+            mb.remove(4);
+            fail("removed past the end");
+        } catch (IllegalStateException ex) {}
+        assertEquals(3, mb.peek(2).intValue());
+        assertEquals(java.util.Arrays.asList(1, 2, 3, 5), java.util.Arrays.asList(mb.messages()));
+        for (int ii : new int[] { 1, 2, 3, 5 })
+            assertEquals(ii, mb.getnb().intValue());
+        assertNull(mb.getnb());
+    }
+
+    public void testBatchMPSC() {
+        final int nBursts = 100, burst = 10;
+        final MailboxMPSC<Integer> mb = new MailboxMPSC<Integer>(4);
+        final Mailbox<Integer> result = new Mailbox<Integer>();
+        new Task() {
+            public void execute() throws Pausable {
+                Integer [] vals = new Integer[burst];
+                for (int ii = 0; ii < nBursts; ii++) {
+                    for (int jj = 0; jj < burst; jj++)
+                        vals[jj] = ii*burst + jj;
+                    mb.putAll(vals);
+                }
+            }
+        }.start();
+        new Task() {
+            public void execute() throws Pausable {
+                Integer [] buf = new Integer[8];
+                int next = 0;
+                while (next < nBursts*burst) {
+                    int num = mb.getAll(buf);
+                    for (int ii = 0; ii < num; ii++)
+                        if (buf[ii] != next++) next = -1 - nBursts*burst;
+                }
+                result.put(next);
+            }
+        }.start();
+        assertEquals(nBursts*burst, result.getb(5000).intValue());
+        assertEquals(0, mb.getAllnb(new Integer[4]));
+    }
+
+    // producers that pause on a full mailbox in backpressure mode are admitted in the order they arrived
+    public void testBackpressure() throws Exception {
+        final int nProducers = 4;
+        final MailboxMPSC<Integer> mb = new MailboxMPSC<Integer>(2, true);
+        assertTrue(mb.putnb(-2));
+        assertTrue(mb.putnb(-1));
+        assertFalse(mb.putnb(-3));
+        for (int ii = 0; ii < nProducers; ii++) {
+            final int num = ii;
+            new Task() {
+                public void execute() throws Pausable {
+                    mb.put(num);
+                }
+            }.start();
+            // order the producers: wait until this one is queued
+            long fin = System.currentTimeMillis() + 5000;
+            while (mb.pausedProducers() <= ii && System.currentTimeMillis() < fin)
+                Thread.sleep(1);
+            assertEquals(ii+1, mb.pausedProducers());
+        }
+        final Mailbox<Integer> result = new Mailbox<Integer>();
+        new Task() {
+            public void execute() throws Pausable {
+                for (int ii = 0; ii < nProducers+2; ii++)
+                    result.put(mb.get());
+            }
+        }.start();
+        for (int ii = -2; ii < nProducers; ii++)
+            assertEquals(ii, result.getb(5000).intValue());
+        assertEquals(nProducers, mb.pausedProducers());
+        assertEquals(nProducers+1, mb.rejectedOffers());
+        assertEquals(2, mb.highWater());
+    }
+
+    // fan-in from tasks and threads to a consumer task on an unbounded mailbox, in order per producer
+    public void testLinked() {
+        final int nTasks = 10, nThreads = 2, nTimes = 500;
+        final MailboxLinked<Msg> mb = new MailboxLinked<Msg>();
+        final Mailbox<Integer> result = new Mailbox<Integer>();
+        new Task() {
+            public void execute() throws Pausable {
+                int [] last = new int[nTasks+nThreads];
+                java.util.Arrays.fill(last, -1);
+                Msg [] buf = new Msg[16];
+                int total = 0, ok = 0;
+                while (total < (nTasks+nThreads)*nTimes) {
+                    int num = mb.getAll(buf);
+                    for (int ii = 0; ii < num; ii++, total++)
+                        if (buf[ii].num == ++last[buf[ii].tid]) ok++;
+                }
+                result.put(ok);
+            }
+        }.start();
+        for (int ii = 0; ii < nTasks; ii++) {
+            final int me = ii;
+            new Task() {
+                public void execute() throws Pausable {
+                    for (int jj = 0; jj < nTimes; jj++) {
+                        mb.put(new Msg(me, jj));
+                        if (jj % 100 == 0) Task.yield();
+                    }
+                }
+            }.start();
+        }
+        for (int ii = nTasks; ii < nTasks+nThreads; ii++) {
+            final int me = ii;
+            new Thread() {
+                public void run() {
+                    for (int jj = 0; jj < nTimes; jj++)
+                        mb.putnb(new Msg(me, jj));
+                }
+            }.start();
+        }
+        assertEquals((nTasks+nThreads)*nTimes, result.getb(10000).intValue());
+        assertNull(mb.getnb());
+    }
+
+    // a timed select over mixed sources times out while they're empty, then reports the one that fills
+    public void testSelectTimeout() {
+        final Mailbox<Msg> mb = new Mailbox<Msg>();
+        final MailboxMPSC<Msg> mpsc = new MailboxMPSC<Msg>();
+        final Cell<Msg> cell = new Cell<Msg>();
+        final Mailbox<Integer> result = new Mailbox<Integer>();
+        new Task() {
+            public void execute() throws Pausable {
+                result.put(Selector.select(50, mb, mpsc, cell));
+                for (int ii = 0; ii < 3; ii++) {
+                    int idx = Selector.select(5000, mb, mpsc, cell);
+                    result.put(idx);
+                    if (idx==0) mb.get();
+                    if (idx==1) mpsc.get();
+                    if (idx==2) cell.get();
+                }
+            }
+        }.start();
+        assertEquals(-1, result.getb(5000).intValue());
+        assertTrue(cell.putnb(new Msg()));
+        assertEquals(2, result.getb(5000).intValue());
+        assertTrue(mpsc.putnb(new Msg()));
+        assertEquals(1, result.getb(5000).intValue());
+        assertTrue(mb.putnb(new Msg()));
+        assertEquals(0, result.getb(5000).intValue());
+    }
+
     // Test mailbox by sending and receiving 1000 times more messages then
     // mailbox's maxSize
     public void testMailBoxWithMaxSize() {
@@ -282,7 +468,7 @@ class TaskMB_NoPause extends Task {
         int n = numMsgs;
         
         for (int i = 0; i < n; i++) {
-            mainmb.putnb(new Msg(id, i));
+            mainmb.putnb(new Msg((int) id, i));
         }
     }
 }
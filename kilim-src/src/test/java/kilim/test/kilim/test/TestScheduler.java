@@ -0,0 +1,539 @@
+package kilim.test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import junit.framework.TestCase;
+import kilim.AffineScheduler;
+import kilim.ExitMsg;
+import kilim.ForkJoinScheduler;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.SchedulerMetrics;
+import kilim.StealingScheduler;
+import kilim.Task;
+import kilim.VirtualThreadScheduler;
+
+public class TestScheduler extends TestCase {
+    static int numThreads = 4;
+
+    static class Recorder extends Task {
+        ConcurrentHashMap<Thread,Boolean> threads;
+        Recorder(ConcurrentHashMap<Thread,Boolean> threads) { this.threads = threads; }
+        public void execute() throws Pausable, Exception {
+            for (int ii=0; ii < 10; ii++) {
+                threads.put(Thread.currentThread(),true);
+                Task.yield();
+            }
+        }
+    }
+
+    // yield repeatedly while holding a kilim lock, exiting with 1 if the task ever resumes on another thread
+    static class Pinned extends Task {
+        kilim.ReentrantLock lock = new kilim.ReentrantLock();
+        public void execute() throws Pausable, Exception {
+            lock.preLock();
+            lock.lock();
+            Thread prev = Thread.currentThread();
+            int result = 0;
+            for (int jj=0; jj < 20; jj++) {
+                Task.yield();
+                if (Thread.currentThread() != prev)
+                    result = 1;
+            }
+            lock.unlock();
+            Task.exit(result);
+        }
+    }
+
+    static ConcurrentHashMap<Thread,Boolean> run(Scheduler s,int num) {
+        ConcurrentHashMap<Thread,Boolean> threads = new ConcurrentHashMap<Thread,Boolean>();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < num; i++) {
+            Task task = new Recorder(threads);
+            task.setScheduler(s);
+            task.informOnExit(exitmb);
+            task.start();
+        }
+        for (int i = 0; i < num; i++)
+            assertNotNull(exitmb.getb(10000));
+        s.idledown();
+        s.shutdown();
+        return threads;
+    }
+
+    public void testSaturateFirst() throws Exception {
+        Scheduler s = new AffineScheduler(numThreads,0,new AffineScheduler.SaturateFirst(1000));
+        assertEquals(1,run(s,100).size());
+    }
+
+    // hold one executor with a blocked task, so that its pending count stays at one. tasks started one at a
+    // time leave the other executors at zero, so neither the tasks nor their resumes after a yield go to it
+    public void testLeastLoaded() throws Exception {
+        AffineScheduler s = new AffineScheduler(numThreads,0,AffineScheduler.leastLoaded);
+        final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch gate = new java.util.concurrent.CountDownLatch(1);
+        final Thread [] held = new Thread[1];
+        Task blocker = new Task() {
+            public void execute() throws Pausable, Exception {
+                held[0] = Thread.currentThread();
+                started.countDown();
+                gate.await();
+            }
+        };
+        blocker.setScheduler(s);
+        blocker.start();
+        started.await();
+        ConcurrentHashMap<Thread,Boolean> threads = new ConcurrentHashMap<Thread,Boolean>();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < 20; i++) {
+            Task task = new Recorder(threads);
+            task.setScheduler(s);
+            task.informOnExit(exitmb);
+            task.start();
+            // a task placed on the held executor couldn't finish until the gate opens
+            assertNotNull(exitmb.getb(5000));
+        }
+        gate.countDown();
+        assertFalse(threads.containsKey(held[0]));
+        s.idledown();
+        s.shutdown();
+    }
+
+    // park as soon as the queue is empty, so that every handoff depends on the park/unpark protocol
+    public void testParkImmediately() throws Exception {
+        AffineScheduler s = new AffineScheduler(numThreads,16);
+        s.setIdle(new AffineScheduler.Idle(0,0));
+        assertEquals(numThreads,run(s,200).size());
+    }
+
+    // Thread.isVirtual, or null before java 21, when VirtualThreadScheduler falls back to a ForkJoinPool
+    static final java.lang.reflect.Method isVirtual;
+    static {
+        java.lang.reflect.Method method = null;
+        try { method = Thread.class.getMethod("isVirtual"); }
+        catch (NoSuchMethodException ex) {}
+        isVirtual = method;
+    }
+
+    // exit with whether every run was on a virtual thread
+    static class VirtualCheck extends Task {
+        public void execute() throws Pausable, Exception {
+            boolean result = isVirtual != null;
+            for (int ii=0; ii < 10 && result; ii++) {
+                result = (Boolean) isVirtual.invoke(Thread.currentThread());
+                Task.yield();
+            }
+            Task.exit(result);
+        }
+    }
+
+    // every task runs to completion, on virtual threads wherever the jvm has them
+    public void testVirtual() throws Exception {
+        Scheduler s = new VirtualThreadScheduler(numThreads);
+        int num = 100;
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < num; i++) {
+            Task task = new VirtualCheck();
+            task.setScheduler(s);
+            task.informOnExit(exitmb);
+            task.start();
+        }
+        for (int i = 0; i < num; i++) {
+            ExitMsg msg = exitmb.getb(10000);
+            assertNotNull(msg);
+            assertEquals(isVirtual != null,msg.result);
+        }
+        assertNull(exitmb.getnb());
+        s.idledown();
+        s.shutdown();
+    }
+
+    public void testVirtualPinned() throws Exception {
+        runPinned(new VirtualThreadScheduler(numThreads));
+    }
+
+    public void testForkJoinPinned() throws Exception {
+        runPinned(new ForkJoinScheduler(numThreads,true));
+    }
+
+    // sleep repeatedly while holding a kilim lock, so that the worker holds for the pinned task across timers
+    static class PinnedSleeper extends Task {
+        kilim.ReentrantLock lock = new kilim.ReentrantLock();
+        public void execute() throws Pausable, Exception {
+            lock.preLock();
+            lock.lock();
+            for (int jj=0; jj < 50; jj++)
+                Task.sleep(1);
+            lock.unlock();
+        }
+    }
+
+    static class Yielder extends Task {
+        public void execute() throws Pausable, Exception {
+            for (int jj=0; jj < 2000; jj++)
+                Task.yield();
+        }
+    }
+
+    // a single worker holding for a pinned task that yields or sleeps must still run the other tasks,
+    // without nesting a hold for each of them
+    public void testForkJoinPinnedYield() throws Exception {
+        Scheduler s = new ForkJoinScheduler(1,true);
+        int num = 20;
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task [] tasks = new Task[num+2];
+        tasks[0] = new Pinned();
+        tasks[1] = new PinnedSleeper();
+        for (int i = 2; i < tasks.length; i++)
+            tasks[i] = new Yielder();
+        for (Task task : tasks) {
+            task.setScheduler(s);
+            task.informOnExit(exitmb);
+            task.start();
+        }
+        for (int i = 0; i < tasks.length; i++)
+            assertNotNull(exitmb.getb(10000));
+        s.idledown();
+        s.shutdown();
+    }
+
+    static void runPinned(Scheduler s) throws Exception {
+        int num = 50;
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < num; i++) {
+            Task task = new Pinned();
+            task.setScheduler(s);
+            task.informOnExit(exitmb);
+            task.start();
+        }
+        for (int i = 0; i < num; i++) {
+            ExitMsg em = exitmb.getb(10000);
+            assertNotNull(em);
+            assertEquals(0,em.result);
+        }
+        s.idledown();
+        s.shutdown();
+    }
+
+    static class Waiter extends Task {
+        Mailbox<Integer> mb = new Mailbox<Integer>();
+        public void execute() throws Pausable, Exception {
+            Task.exit(mb.get());
+        }
+    }
+
+    // wake a group of tasks from a single batch, ie they are only scheduled by the flush
+    static void runBatch(Scheduler s) throws Exception {
+        int num = 200;
+        Waiter [] tasks = new Waiter[num];
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < num; i++) {
+            tasks[i] = new Waiter();
+            tasks[i].setScheduler(s);
+            tasks[i].informOnExit(exitmb);
+            tasks[i].start();
+        }
+        Scheduler.openBatch();
+        for (int i = 0; i < num; i++)
+            tasks[i].mb.putnb(i);
+        Scheduler.flushBatch();
+        int sum = 0;
+        for (int i = 0; i < num; i++) {
+            ExitMsg em = exitmb.getb(10000);
+            assertNotNull(em);
+            sum += (Integer) em.result;
+        }
+        assertEquals(num*(num-1)/2,sum);
+        s.idledown();
+        s.shutdown();
+    }
+
+    public void testBatch() throws Exception {
+        runBatch(new AffineScheduler(numThreads,16));
+    }
+
+    public void testBatchStealing() throws Exception {
+        runBatch(new StealingScheduler(numThreads));
+    }
+
+    // the placement sees the earlier picks of the same batch, so leastLoaded spreads the batch over the executors
+    public void testBatchLeastLoaded() throws Exception {
+        AffineScheduler s = new AffineScheduler(numThreads,0,AffineScheduler.leastLoaded);
+        final ConcurrentHashMap<Thread,Boolean> threads = new ConcurrentHashMap<Thread,Boolean>();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        int num = 2*numThreads;
+        Scheduler.openBatch();
+        for (int i = 0; i < num; i++) {
+            Task task = new Task() {
+                public void execute() throws Pausable, Exception {
+                    threads.put(Thread.currentThread(),true);
+                }
+            };
+            task.setScheduler(s);
+            task.informOnExit(exitmb);
+            task.start();
+        }
+        Scheduler.flushBatch();
+        for (int i = 0; i < num; i++)
+            assertNotNull(exitmb.getb(10000));
+        assertEquals(numThreads,threads.size());
+        s.idledown();
+        s.shutdown();
+    }
+
+    // the recheck interval passed to waitIdle, so long that only the signal of the last task finishing can end
+    // the wait before it
+    static final int patience = 10000;
+
+    static boolean waitIdle(Scheduler s) {
+        if (s instanceof AffineScheduler)
+            return ((AffineScheduler) s).waitIdle(patience);
+        if (s instanceof StealingScheduler)
+            return ((StealingScheduler) s).waitIdle(patience);
+        return ((ForkJoinScheduler) s).waitIdle(patience);
+    }
+
+    // waiting for idle should end when the last task finishes, rather than on the next poll
+    static long idle(Scheduler s,final int sleep) throws Exception {
+        Task task = new Task() {
+            public void execute() throws Pausable, Exception {
+                Task.sleep(sleep);
+            }
+        };
+        task.setScheduler(s);
+        long start = System.currentTimeMillis();
+        task.start();
+        // a pass can end early, eg while the timer is pending, so wait again until idle or out of patience
+        boolean idle = false;
+        while (!idle && System.currentTimeMillis() - start < patience)
+            idle = waitIdle(s);
+        long delta = System.currentTimeMillis() - start;
+        assertTrue("not idle after " + delta, idle && delta < patience);
+        assertTrue(task.isDone());
+        s.idledown();
+        s.shutdown();
+        return delta;
+    }
+
+    public void testIdledown() throws Exception {
+        long delta = idle(new AffineScheduler(numThreads,0),30);
+        assertTrue("idle after " + delta, delta >= 30);
+        delta = idle(new StealingScheduler(numThreads),30);
+        assertTrue("idle after " + delta, delta >= 30);
+        delta = idle(new ForkJoinScheduler(numThreads),30);
+        assertTrue("idle after " + delta, delta >= 30);
+    }
+
+    public void testMetrics() throws Exception {
+        AffineScheduler s = new AffineScheduler(numThreads,0);
+        SchedulerMetrics metrics = s.enableMetrics();
+        SchedulerMetrics.Snapshot before = metrics.snapshot();
+        run(s,100);
+        SchedulerMetrics.Snapshot after = metrics.snapshot();
+        long executed = 0, yields = 0;
+        SchedulerMetrics.Histogram latency = new SchedulerMetrics.Histogram();
+        for (int ii=0; ii < after.size(); ii++) {
+            executed += after.executed[ii];
+            latency.add(after.latency[ii]);
+            Long num = after.pauses(ii).get(kilim.YieldReason.class);
+            yields += num==null ? 0 : num;
+            assertTrue(after.rate(ii,before) >= 0);
+            assertEquals(0,after.depth[ii]);
+        }
+        // each recorder yields 10 times and then exits, ie 11 runs
+        assertEquals(1100,executed);
+        assertEquals(1000,yields);
+        assertEquals(1100,latency.count());
+        assertTrue(latency.percentile(50) <= latency.max());
+    }
+
+    // hold the only executor while both classes are queued, then check the order of the weighted rounds
+    public void testPriority() throws Exception {
+        AffineScheduler s = new AffineScheduler(1,0,new int[] { 4, 1 });
+        final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch gate = new java.util.concurrent.CountDownLatch(1);
+        final StringBuffer order = new StringBuffer();
+        Task blocker = new Task() {
+            public void execute() throws Pausable, Exception {
+                started.countDown();
+                gate.await();
+            }
+        };
+        blocker.setScheduler(s);
+        blocker.start();
+        started.await();
+        for (int ii=0; ii < 20; ii++) {
+            for (final char c : new char[] { 'l', 'h' }) {
+                Task task = new Task() {
+                    public void execute() throws Pausable, Exception {
+                        order.append(c);
+                    }
+                };
+                task.setPriority(c=='h' ? Task.PRIORITY_HIGH : Task.PRIORITY_LOW);
+                task.setScheduler(s);
+                task.start();
+            }
+        }
+        gate.countDown();
+        s.idledown();
+        s.shutdown();
+        StringBuilder expected = new StringBuilder();
+        for (int ii=0; ii < 5; ii++)
+            expected.append("hhhhl");
+        for (int ii=0; ii < 15; ii++)
+            expected.append("l");
+        assertEquals(expected.toString(),order.toString());
+    }
+
+    // fill the ring past its capacity with tasks that yield until a spilled task has run. each yield
+    // finds space in the ring again, so the spilled task only runs if the overflow isn't left behind
+    public void testOverflow() throws Exception {
+        final int queueSize = 128;
+        AffineScheduler s = new AffineScheduler(1,queueSize);
+        final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch gate = new java.util.concurrent.CountDownLatch(1);
+        final boolean [] spilled = new boolean[1];
+        final Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task blocker = new Task() {
+            public void execute() throws Pausable, Exception {
+                started.countDown();
+                gate.await();
+            }
+        };
+        blocker.setScheduler(s);
+        blocker.start();
+        started.await();
+        for (int ii=0; ii < queueSize; ii++) {
+            Task task = new Task() {
+                public void execute() throws Pausable, Exception {
+                    for (int jj=0; jj < 1000000 && !spilled[0]; jj++)
+                        Task.yield();
+                    Task.exit(spilled[0]);
+                }
+            };
+            task.setScheduler(s);
+            task.informOnExit(exitmb);
+            task.start();
+        }
+        Task last = new Task() {
+            public void execute() throws Pausable, Exception {
+                spilled[0] = true;
+            }
+        };
+        last.setScheduler(s);
+        last.start();
+        gate.countDown();
+        for (int ii=0; ii < queueSize; ii++) {
+            ExitMsg msg = exitmb.getb(10000);
+            assertNotNull(msg);
+            assertEquals(true,msg.result);
+        }
+        s.shutdown();
+    }
+
+    // a huge queueSize is a hint, not an allocation of a ring per executor and priority class
+    public void testLargeQueueSize() throws Exception {
+        // run checks that every task exits
+        run(new AffineScheduler(numThreads,1<<28,new int[] { 4, 1 }),10);
+    }
+
+    static class Leaf extends Task {
+        int num;
+        Leaf(int num) { this.num = num; }
+        public void execute() throws Pausable, Exception {
+            int val = num;
+            Task.yield();
+            Task.exit(2*val);
+        }
+    }
+
+    // fork leaves from inside a task on a single thread, so that most of them start on the fibers of
+    // siblings that have already finished, and check that none of them sees a stale frame or a shared id
+    public void testFanOut() throws Exception {
+        AffineScheduler s = new AffineScheduler(1,0);
+        final int num = 1000;
+        final Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        Task root = new Task() {
+            public void execute() throws Pausable, Exception {
+                for (int ii=0; ii < num; ii++) {
+                    Task task = new Leaf(ii);
+                    task.setScheduler(getScheduler());
+                    task.informOnExit(exitmb);
+                    task.start();
+                    if (ii % 10==0)
+                        Task.yield();
+                }
+            }
+        };
+        root.setScheduler(s);
+        root.start();
+        java.util.HashSet<Long> ids = new java.util.HashSet<Long>();
+        long sum = 0;
+        for (int ii=0; ii < num; ii++) {
+            ExitMsg em = exitmb.getb(10000);
+            assertNotNull(em);
+            assertTrue(ids.add(em.task.id));
+            sum += (Integer) em.result;
+        }
+        assertEquals((long) num*(num-1),sum);
+        s.idledown();
+        s.shutdown();
+    }
+
+    // construct tasks on several threads at once, each claiming its own blocks of ids
+    public void testIds() throws Exception {
+        final ConcurrentHashMap<Long,Boolean> ids = new ConcurrentHashMap<Long,Boolean>();
+        final int num = 5000;
+        Thread [] threads = new Thread[numThreads];
+        for (int ii=0; ii < numThreads; ii++) {
+            threads[ii] = new Thread() {
+                public void run() {
+                    for (int jj=0; jj < num; jj++) {
+                        Task task = new Leaf(jj);
+                        ids.put(task.id(),true);
+                        assertEquals((int) (task.id ^ task.id >>> 32),task.hashCode());
+                    }
+                }
+            };
+            threads[ii].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(numThreads*num,ids.size());
+    }
+
+    public void testHistogram() throws Exception {
+        SchedulerMetrics.Histogram hist = new SchedulerMetrics.Histogram();
+        for (long ii=1; ii <= 1000; ii++)
+            hist.record(ii*1000);
+        assertEquals(1000,hist.count());
+        long median = hist.percentile(50);
+        assertTrue("median: " + median, median <= 500000 & median > 500000*7/8);
+        long max = hist.max();
+        assertTrue("max: " + max, max <= 1000000 & max > 1000000*7/8);
+    }
+
+    static class Sleeper extends Task<Long> {
+        public void execute() throws Pausable, Exception {
+            long start = System.currentTimeMillis();
+            for (int ii=0; ii < 5; ii++)
+                Task.sleep(10);
+            Task.exit(System.currentTimeMillis() - start);
+        }
+    }
+
+    // the sleeping task waits on its own timer, and a spurious resume doesn't cut the sleep short
+    public void testSleep() throws Exception {
+        AffineScheduler s = new AffineScheduler(numThreads,0);
+        Sleeper task = new Sleeper();
+        task.setScheduler(s);
+        task.start();
+        while (task.getPauseReason()==null)
+            Thread.yield();
+        assertEquals("timer",String.valueOf(task.getPauseReason()));
+        task.resume();
+        long delta = (Long) task.joinb().result;
+        assertTrue("slept: " + delta,delta >= 50);
+        s.shutdown();
+    }
+}
@@ -0,0 +1,156 @@
+package kilim.test;
+
+import java.util.List;
+import junit.framework.TestCase;
+import kilim.AffineScheduler;
+import kilim.CancelledException;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.Task;
+import kilim.TaskScope;
+
+public class TestScope extends TestCase {
+    static int numThreads = 4;
+    Scheduler scheduler;
+
+    public void setUp() { scheduler = new AffineScheduler(numThreads,0); }
+    public void tearDown() { scheduler.shutdown(); }
+
+    // yield once and exit with twice the value, or block forever if the value is negative
+    static class Child extends Task<Integer> {
+        int val;
+        Mailbox<Integer> mb = new Mailbox<Integer>();
+        Child(int val) { this.val = val; }
+        public void execute() throws Pausable, Exception {
+            int num = val;
+            if (num < 0)
+                mb.get();
+            Task.yield();
+            if (num==13)
+                throw new IllegalStateException("unlucky");
+            Task.exit(2*num);
+        }
+    }
+
+    // run the body in a task on the scheduler and return its exit result
+    Object run(final Pausable.Spawn body) {
+        Task task = new Task.Spawn(body);
+        task.setScheduler(scheduler);
+        task.start();
+        ExitMsg em = task.joinb();
+        return em.result;
+    }
+
+    static <TT> TaskScope<TT> fork(TaskScope<TT> scope,int ... vals) {
+        for (int val : vals)
+            scope.fork((Task<TT>) new Child(val));
+        return scope;
+    }
+
+    public void testJoinAll() {
+        final int num = 10000;
+        Object result = run(new Pausable.Spawn() {
+            public Object execute() throws Pausable, Exception {
+                TaskScope<Integer> scope = new TaskScope<Integer>();
+                for (int ii=0; ii < num; ii++)
+                    scope.fork(new Child(ii==13 ? 0 : ii));
+                return scope.joinAll();
+            }
+        });
+        List<ExitMsg<Integer>> msgs = (List<ExitMsg<Integer>>) result;
+        assertEquals(num,msgs.size());
+        for (int ii=0; ii < num; ii++)
+            assertEquals(ii==13 ? 0 : 2*ii,(int) msgs.get(ii).result);
+    }
+
+    public void testFailure() {
+        // the failure of the child is expected, so keep its stack trace out of the test output
+        scheduler.setLogger(new Scheduler.Logger() {
+            public void log(Object source,Object problem) {}
+        });
+        final TaskScope<Integer> scope = new TaskScope<Integer>(scheduler);
+        Object result = run(new Pausable.Spawn() {
+            public Object execute() throws Pausable, Exception {
+                return fork(scope,-1,-2,13,-3).joinAll();
+            }
+        });
+        List<ExitMsg> msgs = (List<ExitMsg>) result;
+        assertTrue(scope.failure() instanceof IllegalStateException);
+        for (ExitMsg msg : msgs)
+            assertTrue(msg.result instanceof CancelledException | msg.result==scope.failure());
+    }
+
+    public void testFirst() {
+        final TaskScope<Integer> scope = new TaskScope<Integer>(scheduler);
+        Object result = run(new Pausable.Spawn() {
+            public Object execute() throws Pausable, Exception {
+                return fork(scope,-1,-2,1,-3,2,3,-4).joinFirst(2);
+            }
+        });
+        List<ExitMsg<Integer>> msgs = (List<ExitMsg<Integer>>) result;
+        assertEquals(2,msgs.size());
+        for (ExitMsg<Integer> msg : msgs)
+            assertTrue(msg.result > 0);
+        for (Task child : scope.children())
+            assertTrue(child.isDone());
+        assertNull(scope.failure());
+    }
+
+    // cancel a task blocked on a mailbox, after which a second consumer may take its place
+    public void testCancel() {
+        Child child = new Child(-1);
+        child.setScheduler(scheduler);
+        child.start();
+        while (!(child.getPauseReason() instanceof Mailbox))
+            Thread.yield();
+        child.cancel();
+        assertTrue((Object) child.joinb().result instanceof CancelledException);
+        final Mailbox<Integer> mb = child.mb;
+        mb.putnb(7);
+        assertEquals(7,run(new Pausable.Spawn() {
+            public Object execute() throws Pausable, Exception {
+                return mb.get();
+            }
+        }));
+        // cancelled before it starts, so it never runs
+        Child never = new Child(13);
+        never.setScheduler(scheduler);
+        never.cancel();
+        never.start();
+        assertTrue((Object) never.joinb().result instanceof CancelledException);
+    }
+
+    public void testTaskDeadline() {
+        Child child = new Child(-1);
+        child.setScheduler(scheduler);
+        long start = System.currentTimeMillis();
+        child.setDeadline(30).start();
+        Object result = child.joinb().result;
+        long delta = System.currentTimeMillis() - start;
+        assertTrue(result instanceof CancelledException);
+        assertTrue("deadline: " + delta,delta >= 30 & delta < 5000);
+        // a deadline that doesn't pass is cancelled with the task
+        Child quick = new Child(5);
+        quick.setScheduler(scheduler);
+        assertEquals(10,(int) quick.setDeadline(10000).start().joinb().result);
+    }
+
+    public void testDeadline() {
+        final TaskScope<Integer> scope = new TaskScope<Integer>(scheduler);
+        long start = System.currentTimeMillis();
+        Object result = run(new Pausable.Spawn() {
+            public Object execute() throws Pausable, Exception {
+                return fork(scope.setDeadline(50),-1,-2,4,-3).joinAll();
+            }
+        });
+        long delta = System.currentTimeMillis() - start;
+        assertTrue("deadline: " + delta,delta >= 50 & delta < 5000);
+        List<ExitMsg> msgs = (List<ExitMsg>) result;
+        assertEquals(8,msgs.get(2).result);
+        for (int ii : new int[] { 0, 1, 3 })
+            assertTrue(msgs.get(ii).result instanceof CancelledException);
+        assertTrue(scope.isCancelled());
+    }
+}
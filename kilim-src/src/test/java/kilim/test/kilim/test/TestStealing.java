@@ -0,0 +1,73 @@
+package kilim.test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import junit.framework.TestCase;
+import kilim.ExitMsg;
+import kilim.Mailbox;
+import kilim.Pausable;
+import kilim.Scheduler;
+import kilim.StealingScheduler;
+import kilim.Task;
+
+public class TestStealing extends TestCase {
+    static int numThreads = 4;
+
+    // all the tasks are published to worker zero, so any progress on other threads is due to stealing
+    public void testSkewed() throws Exception {
+        int num = 200;
+        StealingScheduler s = new StealingScheduler(numThreads);
+        final ConcurrentHashMap<Thread,Boolean> threads = new ConcurrentHashMap<Thread,Boolean>();
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < num; i++) {
+            Task task = new Task() {
+                public void execute() throws Pausable, Exception {
+                    for (int jj=0; jj < 10; jj++) {
+                        threads.put(Thread.currentThread(),true);
+                        TestLock.sleep(1);
+                        Task.yield();
+                    }
+                }
+            };
+            task.setScheduler(s);
+            task.informOnExit(exitmb);
+            s.schedule(0,task);
+        }
+        for (int i = 0; i < num; i++)
+            assertNotNull(exitmb.getb(10000));
+        s.shutdown();
+        assertTrue("tasks were not stolen", threads.size() > 1);
+    }
+
+    public void testPinned() throws Exception {
+        int num = 100;
+        Scheduler s = new StealingScheduler(numThreads);
+        Mailbox<ExitMsg> exitmb = new Mailbox<ExitMsg>();
+        for (int i = 0; i < num; i++) {
+            Task task = new Task() {
+                public void execute() throws Pausable, Exception {
+                    Thread prev = Thread.currentThread();
+                    pinToThread();
+                    for (int jj=0; jj < 100; jj++) {
+                        Task.yield();
+                        if (Thread.currentThread() != prev) {
+                            unpinFromThread();
+                            Task.exit(1);
+                        }
+                    }
+                    unpinFromThread();
+                    Task.exit(0);
+                }
+            };
+            task.setScheduler(s);
+            task.informOnExit(exitmb);
+            task.start();
+        }
+        for (int i = 0; i < num; i++) {
+            ExitMsg em = exitmb.getb(20000);
+            assertNotNull(em);
+            assertEquals(0,em.result);
+        }
+        s.idledown();
+        s.shutdown();
+    }
+}
@@ -6,10 +6,20 @@
 
 package kilim.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import junit.framework.TestCase;
 import kilim.ExitMsg;
+import kilim.Fiber;
+import kilim.IntGenerator;
+import kilim.LongGenerator;
 import kilim.Mailbox;
 import kilim.Continuation;
+import kilim.Pausable;
+import kilim.PauseReason;
 import kilim.Scheduler;
 import kilim.Task;
 import kilim.test.ex.ExYieldBase;
@@ -59,6 +69,118 @@ public class TestYield extends TestCase {
     }
 
 
+    static class Ints extends IntGenerator {
+        int runs;
+        Ints(int batch) { super(batch); }
+        public void execute() throws Pausable {
+            runs++;
+            for (int ii=0; ii < 100; ii++)
+                yield(ii);
+        }
+    }
+
+    static class Longs extends LongGenerator {
+        public void execute() throws Pausable {
+            for (long ii=0; ii < 100; ii++)
+                yield(ii << 32);
+        }
+    }
+
+    // a batch that doesn't divide the count leaves a partial buffer to drain once the body returns
+    public void testIntGenerator() throws Exception {
+        Ints gen = new Ints(16);
+        int sum = 0, num = 0;
+        while (gen.hasNext()) {
+            sum += gen.nextInt();
+            num++;
+        }
+        assertEquals(100,num);
+        assertEquals(4950,sum);
+        assertFalse(gen.hasNext());
+        gen.reset();
+        assertEquals(0,gen.nextInt());
+        assertEquals(2,gen.runs);
+    }
+
+    public void testLongGenerator() throws Exception {
+        long sum = 0;
+        for (Longs gen = new Longs(); gen.hasNext(); )
+            sum += gen.nextLong();
+        assertEquals(4950L << 32,sum);
+    }
+
+    static class Summer extends Continuation implements Serializable {
+        int total;
+        public void execute() throws Pausable {
+            for (int ii=0; ii < 10; ii++) {
+                total += ii;
+                Fiber.yield();
+            }
+        }
+    }
+
+    // a task that pauses on itself until explicitly resumed, so it stays put while being checkpointed
+    static class Stepper extends Task<Integer> implements Serializable, PauseReason {
+        public boolean isValid(Task t) { return true; }
+        public void execute() throws Pausable {
+            int num = 0;
+            for (int ii=0; ii < 3; ii++) {
+                num++;
+                Task.pause(this);
+            }
+            Task.exit(num);
+        }
+        void await() {
+            while (getPauseReason() != this | getState())
+                Thread.yield();
+        }
+    }
+
+    static byte [] checkpoint(Object obj) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        if (obj instanceof Task) ((Task) obj).checkpoint(out);
+        else ((Continuation) obj).checkpoint(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static ObjectInputStream input(byte [] bytes) throws Exception {
+        return new ObjectInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    public void testCheckpointContinuation() throws Exception {
+        Summer orig = new Summer();
+        for (int ii=0; ii < 4; ii++)
+            orig.run();
+        byte [] bytes = checkpoint(orig);
+        Summer copy = Continuation.restore(input(bytes));
+        assertEquals(6,copy.total);
+        runPure(copy);
+        assertEquals(45,copy.total);
+        assertEquals(6,orig.total);
+    }
+
+    public void testCheckpointTask() throws Exception {
+        Scheduler s = Scheduler.make(1);
+        Stepper orig = new Stepper();
+        orig.setScheduler(s);
+        orig.start();
+        orig.await();
+        byte [] bytes = checkpoint(orig);
+        orig.cancel();
+        Stepper copy = (Stepper) Task.restore(input(bytes));
+        copy.setScheduler(s);
+        copy.start();
+        // picks up after the first pause
+        for (int ii=0; ii < 2; ii++) {
+            copy.await();
+            copy.resume();
+        }
+        assertEquals(3,(int) copy.joinb().result);
+        s.shutdown();
+    }
+
     public static void runTask(String taskClassName, int testCase) throws Exception {
         ExYieldBase task;
         